@@ -0,0 +1,156 @@
+package hudson.plugins.distfork;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Buffers shared by the stream relays of all the distfork tasks on the controller.
+ *
+ * <p>
+ * Instead of every task allocating its own buffers, the <tt>-Z</tt> relay and
+ * {@link ChunkedBundle} borrow fixed size buffers from here and give them back when the stream is closed.
+ * The <tt>-z</tt> input is not relayed this way: it is read by the agent through a remoting pipe, which
+ * buffers already, and on a pump thread that may still be reading when the task gives up on it.
+ * At most {@link #MAX_BYTES} worth of buffers exist at any time; beyond that, tasks wait for a buffer
+ * to be returned, so controller memory stays flat no matter how many tasks run concurrently.
+ * Each stream holds a single buffer, so waiting tasks never hold one.
+ */
+final class BufferPool {
+    public static /*almost final*/ int BUFFER_SIZE = Integer.getInteger(BufferPool.class.getName()+".bufferSize", 64*1024);
+    public static /*almost final*/ long MAX_BYTES = Long.getLong(BufferPool.class.getName()+".maxBytes", 64L*1024*1024);
+
+    static final BufferPool INSTANCE = new BufferPool(BUFFER_SIZE, (int)Math.max(1, MAX_BYTES/BUFFER_SIZE));
+
+    private final int size;
+    private final int max;
+    private final Deque<byte[]> free = new ArrayDeque<byte[]>();
+    private int allocated;
+    private int inUse;
+    private int peak;
+
+    BufferPool(int size, int max) {
+        this.size = size;
+        this.max = max;
+    }
+
+    /**
+     * Borrows a buffer, waiting for one to be returned if the pool is exhausted.
+     */
+    synchronized byte[] acquire() throws InterruptedIOException {
+        long start = System.nanoTime();
+        try {
+            while (free.isEmpty() && allocated>=max)
+                wait();
+        } catch (InterruptedException e) {
+            throw (InterruptedIOException)new InterruptedIOException("Interrupted while waiting for a buffer").initCause(e);
+        }
+        long waited = System.nanoTime()-start;
+        if (waited>=1000000)
+            DistForkMetrics.BUFFER_WAIT.record(waited/1000);
+
+        byte[] b = free.poll();
+        if (b==null) {
+            b = new byte[size];
+            allocated++;
+        }
+        inUse++;
+        peak = Math.max(peak, inUse);
+        return b;
+    }
+
+    synchronized void release(byte[] b) {
+        inUse--;
+        free.push(b);
+        notify();
+    }
+
+    /**
+     * Buffers the given stream with a pooled buffer, which is returned when the stream is closed.
+     */
+    OutputStream output(OutputStream out) throws InterruptedIOException {
+        return new PooledOutputStream(out, acquire());
+    }
+
+    synchronized long getPeakBytes() {
+        return (long)peak*size;
+    }
+
+    synchronized void resetPeak() {
+        peak = inUse;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("buffer pool: %d of %d buffers of %dKB in use, %d allocated, peak %dKB",
+                inUse, max, size/1024, allocated, getPeakBytes()/1024);
+    }
+
+    private final class PooledOutputStream extends FilterOutputStream {
+        private byte[] buf;
+        private int count;
+
+        PooledOutputStream(OutputStream out, byte[] buf) {
+            super(out);
+            this.buf = buf;
+        }
+
+        private byte[] buf() throws IOException {
+            if (buf==null)
+                throw new IOException("Stream closed");
+            return buf;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count>=buf().length)
+                flushBuffer();
+            buf[count++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len>=buf().length) {
+                // large writes bypass the buffer
+                flushBuffer();
+                out.write(b,off,len);
+                return;
+            }
+            if (len>buf.length-count)
+                flushBuffer();
+            System.arraycopy(b,off,buf,count,len);
+            count += len;
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count>0) {
+                out.write(buf,0,count);
+                count = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (buf==null)  return;
+            try {
+                flush();
+            } finally {
+                try {
+                    out.close();
+                } finally {
+                    release(buf);
+                    buf = null;
+                }
+            }
+        }
+    }
+}
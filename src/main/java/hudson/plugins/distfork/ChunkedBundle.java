@@ -0,0 +1,469 @@
+package hudson.plugins.distfork;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * <tt>-z</tt>/<tt>-Z</tt> bundle kept on the controller as a sequence of checksummed chunks.
+ *
+ * <p>
+ * Transferring a multi-GB bundle in one CLI call means starting over whenever the connection breaks.
+ * Instead, the client can upload a bundle chunk by chunk with {@link DistForkBundleCommand} and refer to it
+ * as <tt>-z @ID</tt>, and <tt>-Z @ID</tt> keeps the result here to be downloaded the same way.
+ * Every chunk is verified against its SHA-256 checksum, so an interrupted transfer resumes from
+ * the last verified chunk, and a failed download never requires re-running the command.
+ *
+ * <p>
+ * Bundles live in <tt>$JENKINS_HOME/distfork-bundles/ID</tt> until they are deleted, or until they have
+ * not been used for {@link #MAX_AGE} (see {@link Cleanup}). Only the user who created a bundle
+ * (or an administrator) can access it. All the bundles together may not exceed {@link #MAX_BYTES}.
+ */
+final class ChunkedBundle {
+    /**
+     * Size of the chunks that <tt>-Z @ID</tt> produces.
+     */
+    public static /*almost final*/ int CHUNK_SIZE = Integer.getInteger(ChunkedBundle.class.getName()+".chunkSize", 8*1024*1024);
+
+    /**
+     * Bundles that have not been written or read for this many milliseconds are deleted.
+     */
+    public static /*almost final*/ long MAX_AGE = Long.getLong(ChunkedBundle.class.getName()+".maxAge", TimeUnit.DAYS.toMillis(7));
+
+    /**
+     * Upper bound of the disk space used by all the bundles; writes beyond it are rejected.
+     */
+    public static /*almost final*/ long MAX_BYTES = Long.getLong(ChunkedBundle.class.getName()+".maxBytes", 20L*1024*1024*1024);
+
+    private static final Pattern ID = Pattern.compile("[A-Za-z0-9][A-Za-z0-9_.-]*");
+
+    private final String id;
+    private final File dir;
+
+    private ChunkedBundle(String id, File dir) {
+        this.id = id;
+        this.dir = dir;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Obtains an existing bundle.
+     */
+    public static ChunkedBundle get(String id) throws IOException {
+        ChunkedBundle b = new ChunkedBundle(id, dirOf(id));
+        if (!b.dir.isDirectory())
+            throw new AbortException("No such bundle: "+id);
+        b.checkAccess();
+        // counts as a use for Cleanup
+        b.dir.setLastModified(System.currentTimeMillis());
+        return b;
+    }
+
+    /**
+     * Obtains a bundle to upload chunks into, creating it if necessary.
+     */
+    public static ChunkedBundle getOrCreate(String id) throws IOException {
+        File dir = dirOf(id);
+        Files.createDirectories(dir.getParentFile().toPath());
+        try {
+            Files.createDirectory(dir.toPath());
+        } catch (FileAlreadyExistsException e) {
+            // already there, or someone else just created it
+            return get(id);
+        }
+        // the owner file appears atomically, so checkAccess never reads a partial one
+        Path tmp = Files.createTempFile(dir.toPath(), "owner", ".tmp");
+        Files.write(tmp, currentUser().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, new File(dir,"owner").toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return new ChunkedBundle(id, dir);
+    }
+
+    /**
+     * Creates a new empty bundle, discarding the existing one with the same ID.
+     */
+    public static ChunkedBundle create(String id) throws IOException {
+        if (dirOf(id).isDirectory())
+            get(id).delete();
+        return getOrCreate(id);
+    }
+
+    private static File dirOf(String id) throws AbortException {
+        if (!ID.matcher(id).matches())
+            throw new AbortException("Illegal bundle ID: "+id);
+        return new File(getRootDir(), id);
+    }
+
+    private static File getRootDir() {
+        return new File(Jenkins.get().getRootDir(),"distfork-bundles");
+    }
+
+    private static String currentUser() {
+        return Jenkins.getAuthentication().getName();
+    }
+
+    private void checkAccess() throws IOException {
+        File ownerFile = new File(dir,"owner");
+        if (!ownerFile.exists())
+            throw new AbortException("Bundle "+id+" is being created; try again");
+        String owner = new String(Files.readAllBytes(ownerFile.toPath()), StandardCharsets.UTF_8);
+        if (!owner.equals(currentUser()))
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+    }
+
+    private File chunkFile(int index) {
+        return new File(dir, String.format("%08d", index));
+    }
+
+    private File checksumFile(int index) {
+        return new File(dir, String.format("%08d.sha256", index));
+    }
+
+    private File sealFile() {
+        return new File(dir, "sealed");
+    }
+
+    /**
+     * Stores a chunk read from the given stream, if it matches the checksum.
+     */
+    public void put(int index, String sha256, InputStream in) throws IOException {
+        if (index<0)
+            throw new AbortException("Illegal chunk index: "+index);
+        if (isSealed())
+            throw new AbortException("Bundle "+id+" is already sealed");
+
+        // stop reading as soon as the upload would not fit, rather than after it has filled the disk
+        long remaining = MAX_BYTES-sizeOf(getRootDir());
+        Path tmp = Files.createTempFile(dir.toPath(), "chunk", ".tmp");
+        try {
+            MessageDigest md = sha256();
+            byte[] buf = BufferPool.INSTANCE.acquire();
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                int n;
+                while ((n=in.read(buf))>=0) {
+                    remaining -= n;
+                    if (remaining<0)
+                        throw capacityExceeded();
+                    md.update(buf,0,n);
+                    out.write(buf,0,n);
+                }
+            } finally {
+                BufferPool.INSTANCE.release(buf);
+            }
+            String actual = Util.toHexString(md.digest());
+            if (!actual.equalsIgnoreCase(sha256))
+                throw new AbortException("Checksum mismatch in chunk "+index+" of "+id+": expected "+sha256+" but got "+actual);
+            checkCapacity();
+            // the checksum goes first, so that every visible chunk has one
+            Files.write(checksumFile(index).toPath(), actual.getBytes(StandardCharsets.US_ASCII));
+            Files.move(tmp, chunkFile(index).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Lists the chunks stored so far, in the order of their indices.
+     */
+    public List<Chunk> getChunks() throws IOException {
+        List<Chunk> r = new ArrayList<Chunk>();
+        for (int i=0; chunkFile(i).exists(); i++)
+            r.add(chunk(i));
+        return r;
+    }
+
+    private Chunk chunk(int index) throws IOException {
+        File f = chunkFile(index);
+        if (!f.exists())
+            throw new AbortException("Chunk "+index+" of "+id+" is missing");
+        String sha256 = new String(Files.readAllBytes(checksumFile(index).toPath()), StandardCharsets.US_ASCII);
+        return new Chunk(index, f.length(), sha256);
+    }
+
+    public boolean isSealed() {
+        return sealFile().exists();
+    }
+
+    /**
+     * Marks the upload as complete, once all the chunks up to the given count are in place.
+     */
+    public void seal(int count) throws IOException {
+        if (count<0)
+            throw new AbortException("Illegal chunk count: "+count);
+        for (int i=0; i<count; i++)
+            chunk(i);
+        if (chunkFile(count).exists())
+            throw new AbortException("Bundle "+id+" has more than "+count+" chunks");
+        Files.write(sealFile().toPath(), String.valueOf(count).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private int getChunkCount() throws IOException {
+        if (!isSealed())
+            throw new AbortException("Bundle "+id+" is not sealed yet");
+        return Integer.parseInt(new String(Files.readAllBytes(sealFile().toPath()), StandardCharsets.US_ASCII).trim());
+    }
+
+    /**
+     * Sends one chunk, after checking that it is still intact.
+     */
+    public void writeChunk(int index, OutputStream out) throws IOException {
+        Chunk c = chunk(index);
+        // verify before sending anything, so the client never sees a corrupted chunk
+        byte[] buf = BufferPool.INSTANCE.acquire();
+        try (InputStream in = openChunk(c)) {
+            while (in.read(buf)>=0)
+                ;
+        } finally {
+            BufferPool.INSTANCE.release(buf);
+        }
+        Files.copy(chunkFile(index).toPath(), out);
+    }
+
+    /**
+     * Reads the whole sealed bundle, verifying every chunk along the way.
+     */
+    public InputStream read() throws IOException {
+        final int count = getChunkCount();
+        return new InputStream() {
+            private int next = 0;
+            private InputStream cur;
+
+            private boolean advance() throws IOException {
+                while (cur==null) {
+                    if (next>=count)    return false;
+                    cur = openChunk(chunk(next++));
+                }
+                return true;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int n = read(b,0,1);
+                return n<0 ? -1 : b[0]&0xFF;
+            }
+
+            // a remote reader may still be reading on its own thread when the task closes the stream
+            @Override
+            public synchronized int read(byte[] b, int off, int len) throws IOException {
+                while (advance()) {
+                    int n = cur.read(b,off,len);
+                    if (n>=0)   return n;
+                    cur.close();
+                    cur = null;
+                }
+                return -1;
+            }
+
+            @Override
+            public synchronized void close() throws IOException {
+                if (cur!=null)
+                    cur.close();
+                cur = null;
+                next = count;
+            }
+        };
+    }
+
+    /**
+     * Opens a stream to a chunk that fails at the end if the content doesn't match the checksum.
+     */
+    private InputStream openChunk(final Chunk c) throws IOException {
+        final MessageDigest md = sha256();
+        return new DigestInputStream(Files.newInputStream(chunkFile(c.index).toPath()), md) {
+            private boolean verified;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b,off,len);
+                if (n<0 && !verified) {
+                    verified = true;
+                    String actual = Util.toHexString(md.digest());
+                    if (!actual.equalsIgnoreCase(c.sha256))
+                        throw new IOException("Chunk "+c.index+" of "+id+" is corrupted: expected "+c.sha256+" but got "+actual);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Stores everything written to it as a new sequence of chunks.
+     * The bundle is only sealed by {@link Writer#seal()}, so a failed <tt>-Z</tt> leaves no sealed bundle behind.
+     */
+    public Writer write() {
+        return new Writer();
+    }
+
+    public final class Writer extends OutputStream {
+        private OutputStream cur;
+        private Path tmp;
+        private MessageDigest md;
+        private long len;
+        private int index;
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b},0,1);
+        }
+
+        /**
+         * Streams straight into the chunk file, so that no chunk is ever held in memory.
+         * Callers are expected to buffer, like {@link DistForkCommand} does with {@link BufferPool}.
+         */
+        @Override
+        public void write(byte[] b, int off, int n) throws IOException {
+            while (n>0) {
+                if (cur==null) {
+                    tmp = Files.createTempFile(dir.toPath(), "chunk", ".tmp");
+                    md = sha256();
+                    cur = Files.newOutputStream(tmp);
+                    len = 0;
+                }
+                int c = (int)Math.min(n, CHUNK_SIZE-len);
+                cur.write(b,off,c);
+                md.update(b,off,c);
+                len+=c; off+=c; n-=c;
+                if (len==CHUNK_SIZE)
+                    finishChunk();
+            }
+        }
+
+        private void finishChunk() throws IOException {
+            if (cur==null)  return;
+            try {
+                cur.close();
+                checkCapacity();
+                String sha = Util.toHexString(md.digest());
+                Files.write(checksumFile(index).toPath(), sha.getBytes(StandardCharsets.US_ASCII));
+                Files.move(tmp, chunkFile(index).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+                cur = null;
+            }
+            index++;
+        }
+
+        /**
+         * Writes out the last chunk and marks the bundle as complete.
+         */
+        public void seal() throws IOException {
+            finishChunk();
+            ChunkedBundle.this.seal(index);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)     return;
+            closed = true;
+            finishChunk();
+        }
+    }
+
+    public void delete() throws IOException {
+        Util.deleteRecursive(dir);
+    }
+
+    /**
+     * Fails if the bundles, including the chunk just written, take more than {@link #MAX_BYTES}.
+     */
+    private static void checkCapacity() throws IOException {
+        if (sizeOf(getRootDir())>MAX_BYTES)
+            throw capacityExceeded();
+    }
+
+    private static AbortException capacityExceeded() {
+        return new AbortException("The dist-fork bundles would take more than the limit of "+MAX_BYTES
+                +" bytes; delete some with dist-fork-bundle");
+    }
+
+    private static long sizeOf(File dir) {
+        long size = 0;
+        File[] children = dir.listFiles();
+        if (children!=null) {
+            for (File c : children)
+                size += c.isDirectory() ? sizeOf(c) : c.length();
+        }
+        return size;
+    }
+
+    /**
+     * Deletes the bundles that have not been used for {@link #MAX_AGE}.
+     */
+    @Extension
+    public static final class Cleanup extends AsyncPeriodicWork {
+        public Cleanup() {
+            super("dist-fork bundle cleanup");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return HOUR;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            File[] bundles = getRootDir().listFiles();
+            if (bundles==null)  return;
+            long cutOff = System.currentTimeMillis()-MAX_AGE;
+            for (File b : bundles) {
+                // the last modification of the directory is the last time a chunk was added or the bundle was used
+                if (b.isDirectory() && b.lastModified()<cutOff) {
+                    listener.getLogger().println("Deleting unused dist-fork bundle "+b.getName());
+                    Util.deleteRecursive(b);
+                }
+            }
+        }
+    }
+
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * A verified chunk.
+     */
+    public static final class Chunk {
+        public final int index;
+        public final long size;
+        public final String sha256;
+
+        Chunk(int index, long size, String sha256) {
+            this.index = index;
+            this.size = size;
+            this.sha256 = sha256;
+        }
+
+        @Override
+        public String toString() {
+            return index+" "+size+" "+sha256;
+        }
+    }
+}
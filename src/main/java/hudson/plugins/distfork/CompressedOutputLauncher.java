@@ -0,0 +1,243 @@
+package hudson.plugins.distfork;
+
+import hudson.Launcher;
+import hudson.Launcher.ProcStarter;
+import hudson.Proc;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.RemoteInputStream;
+import hudson.remoting.RemoteOutputStream;
+import hudson.util.CloseProofOutputStream;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Launches processes whose stdout is compressed on the agent, for <tt>--compress-output</tt>.
+ *
+ * <p>
+ * Normally every write of the process output travels through the agent channel and the controller
+ * as it is. Here small writes are coalesced into frames of up to {@link #FRAME_SIZE} bytes, and the frames
+ * are compressed into a single gzip stream that is sync-flushed after each frame, so the client can
+ * decompress it as it arrives (for example with <tt>| gunzip</tt>). A frame is also sent once its first byte
+ * has waited for {@link #LINGER_MS}, so that slow output still shows up in time. The frame buffer and
+ * the window of the remoting pipe bound the memory held for a chatty process; when they are full,
+ * the process blocks on its writes.
+ *
+ * <p>
+ * The process is started with {@link Launcher.LocalLauncher} on the agent itself, so that the compression
+ * happens before the output enters the channel. To run it the same way as without <tt>--compress-output</tt>,
+ * wrap the launcher of the node and apply the {@link hudson.LauncherDecorator}s with {@link #decorateFor(Node)}:
+ * they see and adjust the {@link ProcStarter} as usual, and only the final start goes through here.
+ */
+final class CompressedOutputLauncher extends Launcher.DecoratedLauncher {
+    public static /*almost final*/ int FRAME_SIZE = Integer.getInteger(CompressedOutputLauncher.class.getName()+".frameSize", 64*1024);
+    public static /*almost final*/ int LINGER_MS = Integer.getInteger(CompressedOutputLauncher.class.getName()+".lingerMs", 200);
+
+    /**
+     * @param inner
+     *      Launcher of the node, used for everything but starting the process.
+     */
+    CompressedOutputLauncher(Launcher inner) {
+        super(inner);
+    }
+
+    @Override
+    public Proc launch(ProcStarter ps) throws IOException {
+        final Future<Integer> f = getChannel().callAsync(new Launch(listener, ps.cmds(), ps.envs(), ps.masks(),
+                ps.pwd()!=null ? ps.pwd().getRemote() : null,
+                ps.stdin()!=null ? new RemoteInputStream(ps.stdin(), RemoteInputStream.Flag.NOT_GREEDY) : null,
+                new RemoteOutputStream(new CloseProofOutputStream(ps.stdout())),
+                new RemoteOutputStream(new CloseProofOutputStream(ps.stderr())),
+                FRAME_SIZE, LINGER_MS));
+        return new Proc() {
+            @Override
+            public boolean isAlive() {
+                return !f.isDone();
+            }
+
+            @Override
+            public void kill() {
+                // interrupting the remote call makes LocalProc.join() kill the process tree
+                f.cancel(true);
+            }
+
+            @Override
+            public int join() throws IOException, InterruptedException {
+                try {
+                    return f.get();
+                } catch (InterruptedException e) {
+                    f.cancel(true);
+                    throw e;
+                } catch (CancellationException e) {
+                    return -1;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException)e.getCause();
+                    throw new IOException(e.getCause());
+                }
+            }
+
+            @Override
+            public InputStream getStdout() {
+                return null;
+            }
+
+            @Override
+            public InputStream getStderr() {
+                return null;
+            }
+
+            @Override
+            public OutputStream getStdin() {
+                return null;
+            }
+        };
+    }
+
+    private static final class Launch extends MasterToSlaveCallable<Integer,IOException> {
+        private final TaskListener listener;
+        private final List<String> cmds;
+        private final String[] envs;
+        private final boolean[] masks;
+        private final String pwd;
+        private final InputStream stdin;
+        private final OutputStream stdout;
+        private final OutputStream stderr;
+        private final int frameSize;
+        private final int lingerMs;
+
+        Launch(TaskListener listener, List<String> cmds, String[] envs, boolean[] masks, String pwd,
+               InputStream stdin, OutputStream stdout, OutputStream stderr, int frameSize, int lingerMs) {
+            this.listener = listener;
+            this.cmds = new ArrayList<String>(cmds);
+            this.envs = envs;
+            this.masks = masks;
+            this.pwd = pwd;
+            this.stdin = stdin;
+            this.stdout = stdout;
+            this.stderr = stderr;
+            this.frameSize = frameSize;
+            this.lingerMs = lingerMs;
+        }
+
+        public Integer call() throws IOException {
+            ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+                    new NamingThreadFactory(new DaemonThreadFactory(), "distfork output compression"));
+            try {
+                final FrameOutputStream out = new FrameOutputStream(stdout, frameSize);
+                flusher.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        out.flushIfOlderThan(TimeUnit.MILLISECONDS.toNanos(lingerMs));
+                    }
+                }, lingerMs, lingerMs, TimeUnit.MILLISECONDS);
+                try {
+                    ProcStarter ps = new Launcher.LocalLauncher(listener).launch().cmds(cmds).envs(envs).masks(masks)
+                            .stdin(stdin).stdout(out).stderr(stderr);
+                    if (pwd!=null)
+                        ps.pwd(pwd);
+                    return ps.join();
+                } finally {
+                    out.close();
+                }
+            } catch (InterruptedException e) {
+                // the process has been killed by LocalProc.join()
+                Thread.currentThread().interrupt();
+                return -1;
+            } finally {
+                flusher.shutdownNow();
+                stdout.close();
+                stderr.close();
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Coalesces writes into frames and compresses each frame into the gzip stream.
+     * Flushes from the writer are ignored; frames are sent when full, when they linger, or at the end.
+     */
+    static final class FrameOutputStream extends OutputStream {
+        private final GZIPOutputStream gz;
+        private final byte[] buf;
+        private int len;
+        /**
+         * {@link System#nanoTime()} when the first byte of the current frame was written.
+         */
+        private long since;
+        private boolean closed;
+
+        FrameOutputStream(OutputStream out, int frameSize) throws IOException {
+            this.buf = new byte[frameSize];
+            this.gz = new GZIPOutputStream(out, frameSize, true) {
+                {
+                    def.setLevel(Deflater.BEST_SPEED);
+                }
+            };
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b},0,1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int n) throws IOException {
+            while (n>0) {
+                if (len==0)
+                    since = System.nanoTime();
+                int c = Math.min(n, buf.length-len);
+                System.arraycopy(b,off,buf,len,c);
+                len+=c; off+=c; n-=c;
+                if (len==buf.length)
+                    sendFrame();
+            }
+        }
+
+        private void sendFrame() throws IOException {
+            if (len==0)     return;
+            gz.write(buf,0,len);
+            gz.flush();
+            len = 0;
+        }
+
+        synchronized void flushIfOlderThan(long nanos) {
+            if (closed || len==0 || System.nanoTime()-since<nanos)
+                return;
+            try {
+                sendFrame();
+            } catch (IOException e) {
+                // the next write will run into the same problem and report it
+            }
+        }
+
+        @Override
+        public void flush() {
+            // coalesce
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed)     return;
+            closed = true;
+            sendFrame();
+            gz.finish();
+            gz.flush();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package hudson.plugins.distfork;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * Node-local cache of the read-only datasets requested with <tt>--dataset NAME@VERSION</tt>.
+ *
+ * <p>
+ * Datasets are published by placing <tt>NAME/VERSION.zip</tt> or <tt>NAME/VERSION.tgz</tt> in
+ * <tt>$JENKINS_HOME/distfork-datasets</tt>. The first task on a node that needs one extracts it into
+ * <tt>distfork-datasets/NAME@VERSION</tt> under the node root and marks it read-only; tasks then get
+ * a symlink <tt>NAME</tt> in their work directory pointing there. Concurrent tasks on the same node
+ * wait for a single staging instead of fetching the dataset again.
+ *
+ * <p>
+ * The controller counts the running tasks using each staged dataset. Once the datasets on a node
+ * exceed {@link #MAX_BYTES}, the least recently used ones that are not in use are deleted.
+ */
+final class DatasetCache {
+    /**
+     * Size of the staged datasets kept on each node.
+     */
+    public static /*almost final*/ long MAX_BYTES = Long.getLong(DatasetCache.class.getName()+".maxBytes", 20L*1024*1024*1024);
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9_.-]*");
+
+    /**
+     * Number of running tasks using a staged dataset, keyed by node name and dataset ID.
+     */
+    private static final Map<String,Integer> refs = new HashMap<String,Integer>();
+
+    /**
+     * Serializes the staging and the eviction of the same dataset on the same node.
+     */
+    private static final Map<String,ReentrantLock> locks = new ConcurrentHashMap<String,ReentrantLock>();
+
+    private DatasetCache() {}
+
+    /**
+     * A dataset published on the controller.
+     */
+    public static final class Dataset {
+        public final String name;
+        public final String version;
+        private final File source;
+
+        private Dataset(String name, String version, File source) {
+            this.name = name;
+            this.version = version;
+            this.source = source;
+        }
+
+        public String getId() {
+            return name+"@"+version;
+        }
+
+        /**
+         * Parses <tt>NAME@VERSION</tt> and locates the published dataset.
+         */
+        public static Dataset parse(String spec) throws AbortException {
+            int idx = spec.indexOf('@');
+            String name = idx<0 ? spec : spec.substring(0,idx);
+            String version = idx<0 ? "" : spec.substring(idx+1);
+            if (!NAME.matcher(name).matches() || !NAME.matcher(version).matches())
+                throw new AbortException("Illegal dataset specification: "+spec+"; expected NAME@VERSION");
+            File dir = new File(new File(Jenkins.get().getRootDir(),"distfork-datasets"), name);
+            for (String ext : new String[]{".zip",".tgz"}) {
+                File f = new File(dir, version+ext);
+                if (f.isFile())
+                    return new Dataset(name, version, f);
+            }
+            throw new AbortException("No such dataset: "+spec);
+        }
+    }
+
+    /**
+     * Staging may take minutes, so the waiters must remain interruptible, so that aborting a task frees its executor.
+     */
+    private static ReentrantLock lockFor(String key) {
+        return locks.computeIfAbsent(key, k -> new ReentrantLock());
+    }
+
+    /**
+     * Stages the dataset on the node unless it is already there, and marks it as in use.
+     * Every successful call must be paired with {@link #release(String, Dataset)}.
+     *
+     * @return the read-only directory that holds the dataset
+     */
+    public static FilePath acquire(String nodeName, FilePath root, Dataset ds, TaskListener listener) throws IOException, InterruptedException {
+        String key = nodeName+'/'+ds.getId();
+        synchronized (refs) {
+            refs.merge(key, 1, Integer::sum);
+        }
+        boolean acquired = false;
+        try {
+            FilePath cache = root.child("distfork-datasets");
+            FilePath dir = cache.child(ds.getId());
+            FilePath marker = cache.child(ds.getId()+".complete");
+            boolean staged = false;
+            ReentrantLock lock = lockFor(key);
+            lock.lockInterruptibly();
+            try {
+                if (!marker.exists()) {
+                    listener.getLogger().println("Staging dataset "+ds.getId());
+                    // left over from an interrupted staging
+                    if (dir.exists()) {
+                        dir.act(new SetWritable(true));
+                        dir.deleteRecursive();
+                    }
+                    dir.mkdirs();
+                    dir.act(new ParallelExtractor(new BufferedInputStream(Files.newInputStream(ds.source.toPath())),
+                            ds.source.getName().endsWith(".zip"), Math.max(1,ParallelExtractor.THREADS)));
+                    long size = dir.act(new SetWritable(false));
+                    // evict() reads the markers without holding this lock, so a marker must never be seen half written
+                    FilePath tmp = cache.child(ds.getId()+".complete.tmp");
+                    tmp.write(String.valueOf(size), "UTF-8");
+                    tmp.renameTo(marker);
+                    staged = true;
+                }
+                marker.touch(System.currentTimeMillis());
+            } finally {
+                lock.unlock();
+            }
+            // the cache only grows when something is staged
+            if (staged)
+                evict(nodeName, cache);
+            acquired = true;
+            return dir;
+        } finally {
+            if (!acquired)
+                release(nodeName, ds);
+        }
+    }
+
+    public static void release(String nodeName, Dataset ds) {
+        String key = nodeName+'/'+ds.getId();
+        synchronized (refs) {
+            int n = refs.get(key)-1;
+            if (n==0)   refs.remove(key);
+            else        refs.put(key,n);
+        }
+    }
+
+    /**
+     * Deletes the least recently used datasets that are not in use, until the rest fits in {@link #MAX_BYTES}.
+     */
+    private static void evict(String nodeName, FilePath cache) throws IOException, InterruptedException {
+        FilePath[] markers = cache.list("*.complete");
+        long[] sizes = new long[markers.length];
+        final long[] lastUsed = new long[markers.length];
+        Integer[] order = new Integer[markers.length];
+        long total = 0;
+        for (int i=0; i<markers.length; i++) {
+            try {
+                sizes[i] = Long.parseLong(markers[i].readToString().trim());
+            } catch (NumberFormatException | IOException e) {
+                // corrupted, or just evicted by another task; either way this must not fail the current task
+                sizes[i] = 0;
+            }
+            lastUsed[i] = markers[i].lastModified();
+            order[i] = i;
+            total += sizes[i];
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> lastUsed[i]));
+
+        for (int i : order) {
+            if (total<=MAX_BYTES)   break;
+            String id = markers[i].getName();
+            id = id.substring(0, id.length()-".complete".length());
+            String key = nodeName+'/'+id;
+            ReentrantLock lock = lockFor(key);
+            lock.lockInterruptibly();
+            try {
+                synchronized (refs) {
+                    if (refs.containsKey(key))
+                        continue;
+                }
+                if (!markers[i].exists())
+                    continue;
+                // drop the marker first, so that a half-deleted dataset gets staged again
+                markers[i].delete();
+                FilePath dir = cache.child(id);
+                dir.act(new SetWritable(true));
+                dir.deleteRecursive();
+                total -= sizes[i];
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Changes the write permission of everything in a staged dataset, and reports its size.
+     */
+    private static final class SetWritable extends MasterToSlaveFileCallable<Long> {
+        private final boolean writable;
+
+        SetWritable(boolean writable) {
+            this.writable = writable;
+        }
+
+        public Long invoke(File f, VirtualChannel channel) throws IOException {
+            return walk(f);
+        }
+
+        private long walk(File f) {
+            if (Files.isSymbolicLink(f.toPath()))
+                return 0;
+            long size = 0;
+            File[] children = f.listFiles();
+            if (children!=null) {
+                for (File c : children)
+                    size += walk(c);
+            } else {
+                size = f.length();
+            }
+            f.setWritable(writable, false);
+            return size;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
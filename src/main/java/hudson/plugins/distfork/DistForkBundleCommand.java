@@ -0,0 +1,82 @@
+package hudson.plugins.distfork;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import hudson.model.Computer;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Transfers a <tt>-z</tt>/<tt>-Z</tt> bundle in checksummed chunks, so that a broken transfer can be resumed.
+ *
+ * <p>
+ * To upload, split the bundle, <tt>put</tt> every chunk with its SHA-256 checksum, then <tt>seal</tt> it
+ * and run <tt>dist-fork -z @ID ...</tt>. <tt>status</tt> lists the chunks that are already verified,
+ * so after a failure only the remaining ones need to be sent again.
+ * With <tt>dist-fork -Z @ID ...</tt> the result stays on the controller, and is fetched with
+ * <tt>status</tt> and <tt>get</tt> in the same way. Bundles that are not used for a while are deleted,
+ * and the space they may take on the controller is limited.
+ *
+ * @see ChunkedBundle
+ */
+@Extension
+public class DistForkBundleCommand extends CLICommand {
+
+    public enum Action {
+        put, seal, status, get, delete
+    }
+
+    @Argument(index=0,required=true,metaVar="ACTION",usage="put, seal, status, get or delete")
+    public Action action;
+
+    @Argument(index=1,required=true,metaVar="ID",usage="Bundle ID. Use the extension zip or tgz to tell dist-fork the format, like 'data.tgz'")
+    public String id;
+
+    @Argument(index=2,metaVar="N",usage="Chunk index for put and get, number of chunks for seal")
+    public int number = -1;
+
+    @Argument(index=3,metaVar="SHA256",usage="Checksum of the chunk passed to put")
+    public String checksum;
+
+    public String getShortDescription() {
+        return "uploads/downloads dist-fork bundles in resumable, checksummed chunks";
+    }
+
+    protected int run() throws Exception {
+        Jenkins.get().checkPermission(Computer.BUILD);
+
+        switch (action) {
+        case put:
+            if (number<0 || checksum==null)
+                throw new CmdLineException(null, "put requires a chunk index and its SHA-256 checksum");
+            ChunkedBundle.getOrCreate(id).put(number, checksum, stdin);
+            return 0;
+        case seal:
+            if (number<0)
+                throw new CmdLineException(null, "seal requires the number of chunks");
+            ChunkedBundle.get(id).seal(number);
+            return 0;
+        case status:
+            ChunkedBundle b = ChunkedBundle.get(id);
+            for (ChunkedBundle.Chunk c : b.getChunks())
+                stdout.println(c);
+            if (b.isSealed())
+                stdout.println("sealed");
+            return 0;
+        case get:
+            if (number<0)
+                throw new CmdLineException(null, "get requires a chunk index");
+            ChunkedBundle.get(id).writeChunk(number, stdout);
+            stdout.flush();
+            return 0;
+        case delete:
+            ChunkedBundle.get(id).delete();
+            return 0;
+        default:
+            throw new AssertionError(action);
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package hudson.plugins.distfork;
 
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.FilePath.TarCompression;
 import hudson.Functions;
 import hudson.Launcher;
+import hudson.Proc;
 import hudson.Util;
 import hudson.cli.CLICommand;
 import hudson.model.Computer;
@@ -20,17 +22,18 @@ import hudson.security.AccessDeniedException2;
 import hudson.slaves.Cloud;
 import hudson.util.StreamTaskListener;
 
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.Option;
 
 import jenkins.model.Jenkins;
 import jenkins.security.SlaveToMasterCallable;
+import jenkins.util.Timer;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -38,8 +41,17 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * @author Kohsuke Kawaguchi
@@ -61,15 +73,41 @@ public class DistForkCommand extends CLICommand {
 
     @Option(name="-z",metaVar="FILE",
             usage="Zip/tgz file to be extracted into the target remote machine before execution of the command; " +
-                  "requires -remoting unless you pass =zip or =tgz in which case stdin is used")
+                  "requires -remoting unless you pass =zip or =tgz in which case stdin is used, " +
+                  "or @ID to use a bundle uploaded with dist-fork-bundle")
     public String zip;
 
     @Option(name="-Z",metaVar="FILE",
             usage="Bring back the newly added/updated files in the target remote machine after the end of the command " +
                   "by creating a zip/tgz bundle and place this in the local file system by this name; " +
-                   "requires -remoting unless you pass =zip or =tgz in which case stdout is used")
+                   "requires -remoting unless you pass =zip or =tgz in which case stdout is used, " +
+                   "or @ID to keep the bundle on the controller for dist-fork-bundle to download")
     public String returnZip;
 
+    @Option(name="--return-include",metaVar="GLOB",
+            usage="Only bring back files matching these Ant-style patterns (comma-separated, may be repeated); requires -Z")
+    public List<String> returnIncludes = new ArrayList<String>();
+
+    @Option(name="--return-exclude",metaVar="GLOB",
+            usage="Do not bring back files matching these Ant-style patterns (comma-separated, may be repeated). " +
+                  "Excluded directories are not scanned at all; requires -Z")
+    public List<String> returnExcludes = new ArrayList<String>();
+
+    @Option(name="--dataset",metaVar="NAME@VERSION",
+            usage="Read-only dataset published on the controller to make available in the work directory as NAME; " +
+                  "it is staged once per node and shared by the tasks there. May be repeated")
+    public List<String> datasets = new ArrayList<String>();
+
+    @Option(name="-t",metaVar="SECONDS",
+            usage="Kill the command with all its child processes if it runs longer than this; -Z is skipped in that case")
+    public long timeout = -1;
+
+    @Option(name="--compress-output",
+            usage="Compress the stdout of the command on the agent into a gzip stream, to be decompressed by the client " +
+                  "(e.g. with '| gunzip'). Reduces the load of log-heavy commands on the controller; " +
+                  "cannot be combined with -Z =zip/=tgz, which also uses stdout")
+    public boolean compressOutput;
+
     @Option(name="-e",usage="Environment variables to set to the launched process",metaVar="NAME=VAL")
     public Map<String,String> envs = new HashMap<String,String>();
 
@@ -80,6 +118,10 @@ public class DistForkCommand extends CLICommand {
     protected int run() throws Exception {
         if(commands.isEmpty())
             throw new CmdLineException(null, "No commands are specified");
+        if(compressOutput && returnZip!=null && returnZip.matches("=(zip|tgz)"))
+            throw new CmdLineException(null, "--compress-output cannot be used when -Z writes to stdout");
+        if(returnZip==null && !(returnIncludes.isEmpty() && returnExcludes.isEmpty()))
+            throw new CmdLineException(null, "--return-include and --return-exclude require -Z");
 
         Jenkins j = Jenkins.get();
 
@@ -136,12 +178,45 @@ public class DistForkCommand extends CLICommand {
             if(dots)    name+=" ...";
         }
 
+        final List<DatasetCache.Dataset> sets = new ArrayList<DatasetCache.Dataset>();
+        final List<String> excludes = new ArrayList<String>(returnExcludes);
+        for (String spec : datasets) {
+            DatasetCache.Dataset ds = DatasetCache.Dataset.parse(spec);
+            sets.add(ds);
+            // never bring back or even scan the datasets
+            excludes.add(ds.name+'/');
+        }
+
+        final GlobFilter returnGlobs = new GlobFilter(returnIncludes, excludes);
+        // look up the stored bundles here, as the task does not run as the CLI user
+        final ChunkedBundle zipBundle = zip!=null && zip.startsWith("@") ? ChunkedBundle.get(zip.substring(1)) : null;
+        if (zipBundle!=null && !zipBundle.isSealed())
+            // fail now rather than after waiting for an executor
+            throw new AbortException("Bundle "+zipBundle.getId()+" is not sealed yet");
+        final ChunkedBundle returnBundle = returnZip!=null && returnZip.startsWith("@") ? ChunkedBundle.create(returnZip.substring(1)) : null;
         final int[] exitCode = new int[]{-1};
+        // when the task was aborted or timed out, to measure how long it takes to give back the executor
+        final AtomicLong abortedAt = new AtomicLong();
+        final AtomicLong scheduledAt = new AtomicLong();
+        // set once -Z starts writing to stdout, which it closes when done
+        final AtomicBoolean stdoutTaken = new AtomicBoolean();
 
         DistForkTask t = new DistForkTask(l, name, duration, new Runnable() {
-            @SuppressWarnings("deprecation") // checkChannel only used in -remoting modes
             @Override
             public void run() {
+                long started = System.nanoTime();
+                DistForkMetrics.QUEUE_WAIT.record((started-scheduledAt.get())/1000);
+                DistForkMetrics.taskStarted();
+                try {
+                    doRun();
+                } finally {
+                    DistForkMetrics.taskFinished();
+                    DistForkMetrics.EXECUTION.record((System.nanoTime()-started)/1000);
+                }
+            }
+
+            @SuppressWarnings("deprecation") // checkChannel only used in -remoting modes
+            private void doRun() {
                 StreamTaskListener listener;
                 try {
                     listener = new StreamTaskListener(stderr, getClientCharset());
@@ -167,37 +242,110 @@ public class DistForkCommand extends CLICommand {
 
                     {// copy over files
                         if(zip!=null) {
-                            BufferedInputStream in = new BufferedInputStream(zip.matches("=(zip|tgz)") ? stdin : new FilePath(checkChannel(), zip).read());
-                            if(zip.endsWith("zip"))
-                                workDir.unzipFrom(in);
-                            else
-                                workDir.untarFrom(in, TarCompression.GZIP);
+                            // not pooled: a remote agent reads this on a pump thread of its own, and the pipe buffers anyway
+                            // the extractors close the stream they are given, but stdin is still to be passed to the process
+                            InputStream in = zipBundle!=null ? zipBundle.read() :
+                                    zip.matches("=(zip|tgz)") ? CloseShieldInputStream.wrap(stdin) : new FilePath(checkChannel(), zip).read();
+                            try {
+                                if(ParallelExtractor.THREADS>1)
+                                    workDir.act(new ParallelExtractor(in, zip.endsWith("zip"), ParallelExtractor.THREADS));
+                                else if(zip.endsWith("zip"))
+                                    workDir.unzipFrom(in);
+                                else
+                                    workDir.untarFrom(in, TarCompression.GZIP);
+                            } finally {
+                                in.close();
+                            }
                         }
 
                     }
 
                     List<Closeable> cleanUpList = new ArrayList<Closeable>();
+                    List<DatasetCache.Dataset> acquired = new ArrayList<DatasetCache.Dataset>();
 
                     try {
+                        for (DatasetCache.Dataset ds : sets) {
+                            FilePath link = workDir.child(ds.name);
+                            if (link.exists())
+                                throw new AbortException("Dataset "+ds.getId()+" conflicts with "+ds.name+" in the work directory");
+                            FilePath dir = DatasetCache.acquire(nodeName, root, ds, listener);
+                            acquired.add(ds);
+                            link.symlinkTo(dir.getRemote(), listener);
+                        }
+
                         long startTime = c.getChannel().call(new GetSystemTime());
                         Launcher launcher = n.createLauncher(listener);
-                        exitCode[0] = launcher.launch().cmds(commands)
-                                .stdin(stdin).stdout(stdout).stderr(stderr).pwd(workDir).envs(envs).join();
+                        if (compressOutput)
+                            launcher = new CompressedOutputLauncher(launcher).decorateFor(n);
+                        final Proc proc = launcher.launch().cmds(commands)
+                                .stdin(stdin).stdout(stdout).stderr(stderr).pwd(workDir).envs(envs).start();
+
+                        final AtomicBoolean timedOut = new AtomicBoolean();
+                        ScheduledFuture<?> killer = null;
+                        if (timeout>0) {
+                            killer = Timer.get().schedule(new Runnable() {
+                                public void run() {
+                                    abortedAt.compareAndSet(0, System.currentTimeMillis());
+                                    timedOut.set(true);
+                                    // kill() may block for a while, which the shared timer threads must not
+                                    Computer.threadPoolForRemoting.submit(new Runnable() {
+                                        public void run() {
+                                            kill(proc);
+                                        }
+                                    });
+                                }
+                            }, timeout, TimeUnit.SECONDS);
+                        }
+                        try {
+                            exitCode[0] = proc.join();
+                        } catch (InterruptedException e) {
+                            abortedAt.compareAndSet(0, System.currentTimeMillis());
+                            // Proc.join() kills the process on interruption too, but a remote one only asynchronously
+                            kill(proc);
+                            throw e;
+                        } finally {
+                            if (killer!=null)
+                                killer.cancel(false);
+                        }
 
-                        if (returnZip!=null) {
+                        if (timedOut.get()) {
+                            listener.error("Timed out after "+timeout+" seconds; killed the process and its children");
+                            exitCode[0] = -1;
+                        } else if (returnZip!=null) {
                             stderr.println("Copying back files");
-                            try (OutputStream os = new BufferedOutputStream(returnZip.matches("=(zip|tgz)") ? stdout : new FilePath(checkChannel(), returnZip).write())) {
-                                RootCutOffFilter scanner = new RootCutOffFilter(new TimestampFilter(startTime));
+                            if (returnBundle==null && returnZip.matches("=(zip|tgz)"))
+                                stdoutTaken.set(true);
+                            ChunkedBundle.Writer stored = returnBundle!=null ? returnBundle.write() : null;
+                            try (OutputStream os = BufferPool.INSTANCE.output(stored!=null ? stored :
+                                    returnZip.matches("=(zip|tgz)") ? stdout : new FilePath(checkChannel(), returnZip).write())) {
+                                RootCutOffFilter scanner = new RootCutOffFilter(new TimestampFilter(startTime), returnGlobs);
                                 if(returnZip.endsWith("zip")) {
                                     workDir.zip(os,scanner);
                                 } else {
                                     workDir.tar(TarCompression.GZIP.compress(os),scanner);
                                 }
                                 os.flush();
+                                if (stored!=null) {
+                                    stored.seal();
+                                    stderr.println("Stored the bundle as "+returnBundle.getId()+"; download it with dist-fork-bundle");
+                                }
                             }
                         }
                     } finally {
-                        workDir.deleteRecursive();
+                        if (abortedAt.get()==0) {
+                            workDir.deleteRecursive();
+                        } else {
+                            // a large work directory shouldn't hold up the executor after an abort
+                            final FilePath dir = workDir;
+                            Computer.threadPoolForRemoting.submit(new Callable<Void>() {
+                                public Void call() throws Exception {
+                                    dir.deleteRecursive();
+                                    return null;
+                                }
+                            });
+                        }
+                        for (DatasetCache.Dataset ds : acquired)
+                            DatasetCache.release(nodeName, ds);
                         for (Closeable cl : cleanUpList)
                             cl.close();
                     }
@@ -207,6 +355,10 @@ public class DistForkCommand extends CLICommand {
                 } catch (Exception e) {
                     Functions.printStackTrace(e, listener.error("Failed to execute a process"));
                     exitCode[0] = -1;
+                } finally {
+                    long t = abortedAt.get();
+                    if (t!=0)
+                        DistForkMetrics.ABORT_TO_RELEASE.record(System.currentTimeMillis()-t);
                 }
             }
 
@@ -221,24 +373,47 @@ public class DistForkCommand extends CLICommand {
             }
         });
 
-        // run and wait for the completion
-        Queue.WaitingItem item = j.getQueue().schedule(t, 0);
-        if (item == null) {
-            throw new IllegalStateException("Could not schedule task");
-        }
-        Future<Executable> f = item.getFuture();
         try {
-            f.get();
-        } catch (CancellationException e) {
-            stderr.println("Task cancelled");
-            return -1;
-        } catch (InterruptedException e) {
-            // if the command itself is aborted, cancel the execution
-            f.cancel(true);
-            throw e;
-        }
+            // run and wait for the completion
+            scheduledAt.set(System.nanoTime());
+            Queue.WaitingItem item = j.getQueue().schedule(t, 0);
+            if (item == null) {
+                throw new IllegalStateException("Could not schedule task");
+            }
+            DistForkProvisioningStrategy.scheduled(l);
+            Future<Executable> f = item.getFuture();
+            try {
+                while (true) {
+                    try {
+                        f.get(1, TimeUnit.SECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        // a disconnect normally interrupts this thread, but a failed write to stdout tells too;
+                        // once -Z writes the bundle to stdout and closes it, the error state means nothing
+                        if (!stdoutTaken.get() && stdout.checkError()) {
+                            // the client is gone, so nobody is waiting for the result anymore
+                            abortedAt.compareAndSet(0, System.currentTimeMillis());
+                            f.cancel(true);
+                            return -1;
+                        }
+                    }
+                }
+            } catch (CancellationException e) {
+                stderr.println("Task cancelled");
+                return -1;
+            } catch (InterruptedException e) {
+                // if the command itself is aborted, cancel the execution
+                abortedAt.compareAndSet(0, System.currentTimeMillis());
+                f.cancel(true);
+                throw e;
+            }
 
-        return exitCode[0];
+            return exitCode[0];
+        } finally {
+            // a -Z @ID that did not complete leaves nothing behind
+            if (returnBundle!=null && !returnBundle.isSealed())
+                returnBundle.delete();
+        }
     }
 
     /**
@@ -256,7 +431,8 @@ public class DistForkCommand extends CLICommand {
 
     /**
      * Check if the current user has permission to provision on any of the specified clouds.
-     * TODO as of 2.20 this is useless and the task will just hang anyway (see test)
+     * TODO as of 2.20 this is useless and the task will just hang anyway (see test);
+     * the provisioning itself is done by {@link DistForkProvisioningStrategy}
      */
     private static final boolean hasProvisionPermission(Collection<? extends Cloud> clouds) {
         for (Cloud cloud : clouds) {
@@ -267,6 +443,33 @@ public class DistForkCommand extends CLICommand {
         return false;
     }
 
+    /**
+     * Kills the process and its children, but gives up after {@link #KILL_TIMEOUT} seconds
+     * so that an unresponsive agent cannot hold up the executor.
+     */
+    private static void kill(final Proc proc) {
+        Future<Void> f = Computer.threadPoolForRemoting.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                proc.kill();
+                return null;
+            }
+        });
+        try {
+            f.get(KILL_TIMEOUT, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            LOGGER.log(Level.WARNING, "Failed to kill "+proc, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * How long to wait for an aborted process to be killed.
+     */
+    public static /*almost final*/ int KILL_TIMEOUT = Integer.getInteger(DistForkCommand.class.getName()+".killTimeout", 10);
+
+    private static final Logger LOGGER = Logger.getLogger(DistForkCommand.class.getName());
+
     /**
      * Obtains the system clock.
      */
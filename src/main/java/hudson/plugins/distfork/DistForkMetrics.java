@@ -0,0 +1,128 @@
+package hudson.plugins.distfork;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timings of the distfork tasks running on this controller.
+ *
+ * <p>
+ * Every sample is logged at {@link Level#FINE}, and the statistics can be inspected from the script console
+ * with <tt>hudson.plugins.distfork.DistForkMetrics.report()</tt>.
+ */
+public final class DistForkMetrics {
+    /**
+     * From the abort or the timeout of a task until its executor is free again.
+     */
+    static final Stat ABORT_TO_RELEASE = new Stat("abort to executor release", "ms");
+
+    /**
+     * From scheduling a task until it starts running on an executor.
+     */
+    static final Stat QUEUE_WAIT = new Stat("queue wait", "us");
+
+    /**
+     * From the start of a task on an executor until the executor is free again.
+     */
+    static final Stat EXECUTION = new Stat("execution", "us");
+
+    /**
+     * Time a task waited for a {@link BufferPool} buffer, when it had to wait at all.
+     */
+    static final Stat BUFFER_WAIT = new Stat("wait for a pooled buffer", "us");
+
+    private static final Stat[] ALL = {QUEUE_WAIT, EXECUTION, ABORT_TO_RELEASE, BUFFER_WAIT};
+
+    private static final AtomicInteger running = new AtomicInteger();
+    private static final AtomicInteger peakRunning = new AtomicInteger();
+
+    private DistForkMetrics() {}
+
+    public static String report() {
+        StringBuilder buf = new StringBuilder();
+        for (Stat s : ALL)
+            buf.append(s).append('\n');
+        int peak = peakRunning.get();
+        buf.append(String.format("running tasks: %d, peak %d%n", running.get(), peak));
+        buf.append(BufferPool.INSTANCE).append('\n');
+        return buf.toString();
+    }
+
+    public static void reset() {
+        for (Stat s : ALL)
+            s.reset();
+        peakRunning.set(running.get());
+        BufferPool.INSTANCE.resetPeak();
+    }
+
+    static int getRunning() {
+        return running.get();
+    }
+
+    static void taskStarted() {
+        int n = running.incrementAndGet();
+        peakRunning.accumulateAndGet(n, Math::max);
+    }
+
+    static void taskFinished() {
+        running.decrementAndGet();
+    }
+
+    /**
+     * Count, mean, maximum and percentiles over the recent samples of one measurement.
+     */
+    static final class Stat {
+        private static final int WINDOW = 1024;
+
+        private final String name;
+        private final String unit;
+        private final long[] recent = new long[WINDOW];
+        private long count;
+        private long total;
+        private long max;
+
+        Stat(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        public synchronized void record(long value) {
+            recent[(int)(count%WINDOW)] = value;
+            count++;
+            total += value;
+            max = Math.max(max, value);
+            LOGGER.log(Level.FINE, "{0}: {1}", new Object[]{name, value});
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        /**
+         * Percentile of the last {@value #WINDOW} samples, or 0 if there is none.
+         */
+        public synchronized long percentile(double p) {
+            int n = (int)Math.min(count, WINDOW);
+            if (n==0)   return 0;
+            long[] sorted = Arrays.copyOf(recent, n);
+            Arrays.sort(sorted);
+            int idx = (int)Math.ceil(p/100*n)-1;
+            return sorted[Math.max(0, Math.min(n-1, idx))];
+        }
+
+        public synchronized void reset() {
+            count = total = max = 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            String u = unit;
+            return String.format("%s: n=%d mean=%d%s p50=%d%s p99=%d%s max=%d%s", name, count,
+                    count==0 ? 0 : total/count, u, percentile(50), u, percentile(99), u, max, u);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DistForkMetrics.class.getName());
+}
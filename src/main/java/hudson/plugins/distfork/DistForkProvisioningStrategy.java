@@ -0,0 +1,145 @@
+package hudson.plugins.distfork;
+
+import hudson.Extension;
+import hudson.model.Label;
+import hudson.model.LoadStatistics;
+import hudson.model.Queue;
+import hudson.slaves.Cloud;
+import hudson.slaves.CloudProvisioningListener;
+import hudson.slaves.NodeProvisioner;
+import jenkins.model.Jenkins;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provisions cloud capacity for {@link DistForkTask}s ahead of the standard strategy.
+ *
+ * <p>
+ * The standard strategy waits for the load statistics to show a sustained backlog, so every burst of
+ * distfork tasks pays the full provisioning latency. This strategy runs first, and asks the clouds for:
+ * <ul>
+ * <li>enough executors to drain the queued distfork tasks of a label within {@link #HORIZON},
+ *     sized from their estimated durations, and
+ * <li>a warm pool of idle executors for the labels listed in {@link #WARM_POOL}, such as <tt>linux=2,gpu=1</tt>.
+ * </ul>
+ * The warm pool is only kept while the label has seen a distfork task within {@link #COOL_DOWN}.
+ * After that this strategy stops asking for it, and the retention strategy of the cloud releases
+ * the idle agents as usual.
+ */
+@Extension(ordinal=200)
+public class DistForkProvisioningStrategy extends NodeProvisioner.Strategy {
+    /**
+     * Comma-separated <tt>LABEL=N</tt> pairs, N being the number of idle executors to keep ready.
+     */
+    public static /*almost final*/ String WARM_POOL = System.getProperty(DistForkProvisioningStrategy.class.getName()+".warmPool", "");
+
+    /**
+     * The queued work is to be drained within this many milliseconds.
+     * Tasks with unknown duration count as this long.
+     */
+    public static /*almost final*/ long HORIZON = Long.getLong(DistForkProvisioningStrategy.class.getName()+".horizon", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * How long the warm pool of a label is kept after its last distfork task, in milliseconds.
+     */
+    public static /*almost final*/ long COOL_DOWN = Long.getLong(DistForkProvisioningStrategy.class.getName()+".coolDown", TimeUnit.MINUTES.toMillis(10));
+
+    /**
+     * When a distfork task was last scheduled for each label expression; "" for no label.
+     */
+    private static final Map<String,Long> lastSeen = new ConcurrentHashMap<String,Long>();
+
+    /**
+     * Called when a task is scheduled, to keep the warm pool alive and to review the provisioning right away
+     * instead of waiting for the next load statistics tick.
+     */
+    static void scheduled(Label label) {
+        lastSeen.put(key(label), System.currentTimeMillis());
+        Jenkins j = Jenkins.get();
+        if (j.clouds.isEmpty())
+            return;
+        NodeProvisioner p = label==null ? j.unlabeledNodeProvisioner : label.nodeProvisioner;
+        p.suggestReviewNow();
+    }
+
+    private static String key(Label label) {
+        return label==null ? "" : label.getExpression();
+    }
+
+    @Override
+    public NodeProvisioner.StrategyDecision apply(NodeProvisioner.StrategyState state) {
+        Label label = state.getLabel();
+        int wanted = backlog(label);
+        Long seen = lastSeen.get(key(label));
+        if (seen!=null && System.currentTimeMillis()-seen<COOL_DOWN) {
+            Integer warm = parseWarmPool().get(key(label));
+            if (warm!=null)
+                wanted += warm;
+        }
+        if (wanted==0)
+            return NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES;
+
+        LoadStatistics.LoadStatisticsSnapshot snapshot = state.getSnapshot();
+        int excess = wanted - snapshot.getAvailableExecutors() - snapshot.getConnectingExecutors()
+                - state.getPlannedCapacitySnapshot() - state.getAdditionalPlannedCapacity();
+
+        for (Cloud c : Jenkins.get().clouds) {
+            if (excess<=0)  break;
+            Cloud.CloudState cloudState = new Cloud.CloudState(label, state.getAdditionalPlannedCapacity());
+            if (!c.canProvision(cloudState) || isVetoed(c, cloudState, excess))
+                continue;
+            Collection<NodeProvisioner.PlannedNode> planned = c.provision(cloudState, excess);
+            for (CloudProvisioningListener cl : CloudProvisioningListener.all())
+                cl.onStarted(c, label, planned);
+            state.recordPendingLaunches(planned);
+            for (NodeProvisioner.PlannedNode p : planned)
+                excess -= p.numExecutors;
+        }
+        // the other strategies still take care of the tasks that are not ours
+        return NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES;
+    }
+
+    /**
+     * Lets the listeners that enforce quotas or budgets veto the provisioning, as they can for the standard strategy.
+     */
+    private static boolean isVetoed(Cloud c, Cloud.CloudState cloudState, int excess) {
+        for (CloudProvisioningListener cl : CloudProvisioningListener.all()) {
+            if (cl.canProvision(c, cloudState, excess)!=null)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Number of executors needed to drain the queued distfork tasks for the label within {@link #HORIZON}.
+     */
+    static int backlog(Label label) {
+        long work = 0;
+        for (Queue.Item i : Jenkins.get().getQueue().getItems()) {
+            if (!(i.task instanceof DistForkTask) || !Objects.equals(i.task.getAssignedLabel(), label))
+                continue;
+            long d = i.task.getEstimatedDuration();
+            work += d<=0 || d>HORIZON ? HORIZON : d;
+        }
+        return (int)((work+HORIZON-1)/HORIZON);
+    }
+
+    private static Map<String,Integer> parseWarmPool() {
+        Map<String,Integer> r = new HashMap<String,Integer>();
+        for (String pair : WARM_POOL.split(",")) {
+            int idx = pair.lastIndexOf('=');
+            if (idx<0)  continue;
+            try {
+                r.put(pair.substring(0,idx).trim(), Integer.parseInt(pair.substring(idx+1).trim()));
+            } catch (NumberFormatException e) {
+                // ignore malformed entries
+            }
+        }
+        return r;
+    }
+}
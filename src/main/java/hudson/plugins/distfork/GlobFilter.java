@@ -0,0 +1,80 @@
+package hudson.plugins.distfork;
+
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Ant-style include/exclude patterns that select which paths go into the <tt>-Z</tt> bundle.
+ *
+ * <p>
+ * Paths are relative to the work directory and use '/' as the separator.
+ * Each pattern string may contain several comma-separated patterns, and a pattern
+ * ending with '/' is treated as "this directory and everything below it".
+ */
+final class GlobFilter implements Serializable {
+    private final List<String> includes;
+    private final List<String> excludes;
+
+    public GlobFilter(Collection<String> includes, Collection<String> excludes) {
+        this.includes = parse(includes);
+        this.excludes = parse(excludes);
+    }
+
+    public boolean isEmpty() {
+        return includes.isEmpty() && excludes.isEmpty();
+    }
+
+    /**
+     * Returns true if nothing under the given directory can be selected,
+     * in which case the scanner doesn't need to descend into it at all.
+     */
+    public boolean isPruned(String dir) {
+        if (matchesAny(excludes, dir))
+            return true;
+        if (includes.isEmpty())
+            return false;
+        for (String p : includes) {
+            if (SelectorUtils.matchPatternStart(p, dir))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the given path should be placed into the bundle.
+     */
+    public boolean accept(String path) {
+        if (matchesAny(excludes, path))
+            return false;
+        return includes.isEmpty() || matchesAny(includes, path);
+    }
+
+    private static boolean matchesAny(List<String> patterns, String path) {
+        for (String p : patterns) {
+            if (SelectorUtils.matchPath(p, path))
+                return true;
+        }
+        return false;
+    }
+
+    private static List<String> parse(Collection<String> specs) {
+        List<String> r = new ArrayList<String>();
+        if (specs==null)    return r;
+        for (String spec : specs) {
+            for (String p : spec.split(",")) {
+                p = p.trim().replace('\\','/');
+                if (p.length()==0)  continue;
+                if (p.endsWith("/"))
+                    p += "**";
+                r.add(p);
+            }
+        }
+        return r;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,380 @@
+package hudson.plugins.distfork;
+
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.remoting.RemoteInputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.MasterToSlaveFileCallable;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Extracts a <tt>-z</tt> bundle into the work directory, overlapping decompression with file writes.
+ *
+ * <p>
+ * {@link FilePath#unzipFrom(InputStream)} and {@link FilePath#untarFrom(InputStream, FilePath.TarCompression)}
+ * decompress and write one file at a time on a single thread. Here the files are written by a small pool instead.
+ * For zip the bundle is spooled to a temporary file first (as {@link FilePath#unzipFrom(InputStream)} does) so that
+ * the entries can be decoded in parallel. For tgz the stream can only be decoded sequentially, so the decoding thread
+ * hands the decoded bytes over to the pool. In both cases small files are grouped into batches, and the amount of
+ * decoded data waiting to be written is bounded.
+ */
+final class ParallelExtractor extends MasterToSlaveFileCallable<Void> {
+    /**
+     * Number of writer threads on the agent. 1 or less falls back to the sequential {@link FilePath} methods.
+     */
+    public static /*almost final*/ int THREADS = Integer.getInteger(ParallelExtractor.class.getName()+".threads", 4);
+
+    /**
+     * Files up to this size are decoded into memory and written in batches.
+     */
+    static final int SMALL_FILE = 64*1024;
+
+    /**
+     * A batch of small files is handed to the pool once it reaches this many bytes or {@link #BATCH_FILES} files.
+     */
+    static final int BATCH_BYTES = 1024*1024;
+    static final int BATCH_FILES = 256;
+
+    /**
+     * Larger tgz entries are written in chunks of this size.
+     */
+    static final int CHUNK = 1024*1024;
+
+    /**
+     * Upper bound of the decoded bytes that are waiting to be written.
+     */
+    static final int MAX_PENDING = 32*1024*1024;
+
+    private final InputStream in;
+    private final boolean zip;
+    private final int threads;
+
+    public ParallelExtractor(InputStream in, boolean zip, int threads) {
+        this.in = new RemoteInputStream(in, RemoteInputStream.Flag.GREEDY);
+        this.zip = zip;
+        this.threads = threads;
+    }
+
+    public Void invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+        Files.createDirectories(dir.toPath());
+        Writers w = new Writers(threads);
+        boolean done = false;
+        try {
+            if (zip)
+                extractZip(dir, w);
+            else
+                extractTar(dir, w);
+            w.finish();
+            done = true;
+        } finally {
+            // like FilePath.unzipFrom/untarFrom; on the built-in node this closes the caller's stream itself
+            in.close();
+            if (!done)
+                w.abort();
+        }
+        return null;
+    }
+
+    private void extractZip(File dir, Writers w) throws IOException, InterruptedException {
+        Path tmp = Files.createTempFile("distfork", ".zip");
+        try {
+            Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+            try (final ZipFile zf = new ZipFile(tmp.toFile())) {
+                List<ZipArchiveEntry> batch = new ArrayList<ZipArchiveEntry>();
+                long batchBytes = 0;
+
+                Enumeration<ZipArchiveEntry> entries = zf.getEntriesInPhysicalOrder();
+                while (entries.hasMoreElements()) {
+                    w.checkFailure();
+                    final ZipArchiveEntry e = entries.nextElement();
+                    final File f = resolve(dir, e.getName());
+                    // like FilePath.unzipFrom, symlink entries are written as plain files
+                    if (e.isDirectory()) {
+                        Files.createDirectories(f.toPath());
+                    } else if (e.getSize()>=0 && e.getSize()<=SMALL_FILE) {
+                        batch.add(e);
+                        batchBytes += e.getSize();
+                        if (batchBytes>=BATCH_BYTES || batch.size()>=BATCH_FILES) {
+                            submitZipBatch(zf, dir, batch, w);
+                            batch = new ArrayList<ZipArchiveEntry>();
+                            batchBytes = 0;
+                        }
+                    } else {
+                        // large entries are inflated by the writer itself, so they are decoded in parallel
+                        w.submit(0, new Job() {
+                            public void run() throws IOException {
+                                writeZipEntry(zf, e, f);
+                            }
+                        });
+                    }
+                }
+                if (!batch.isEmpty())
+                    submitZipBatch(zf, dir, batch, w);
+                // the writers must be done before the zip file is closed
+                w.finish();
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void submitZipBatch(final ZipFile zf, File dir, List<ZipArchiveEntry> batch, Writers w) throws IOException, InterruptedException {
+        final List<ZipArchiveEntry> entries = batch;
+        final List<File> files = new ArrayList<File>(entries.size());
+        for (ZipArchiveEntry e : entries)
+            files.add(resolve(dir, e.getName()));
+        w.submit(0, new Job() {
+            public void run() throws IOException {
+                for (int i=0; i<entries.size(); i++)
+                    writeZipEntry(zf, entries.get(i), files.get(i));
+            }
+        });
+    }
+
+    private static void writeZipEntry(ZipFile zf, ZipArchiveEntry e, File f) throws IOException {
+        Files.createDirectories(f.toPath().getParent());
+        try (InputStream i = zf.getInputStream(e); OutputStream o = Files.newOutputStream(f.toPath())) {
+            IOUtils.copy(i, o);
+        }
+        chmod(f, e.getUnixMode());
+        f.setLastModified(e.getTime());
+    }
+
+    private void extractTar(File dir, Writers w) throws IOException, InterruptedException {
+        try (TarArchiveInputStream t = new TarArchiveInputStream(new GZIPInputStream(new BufferedInputStream(in, 64*1024)))) {
+            List<SmallFile> batch = new ArrayList<SmallFile>();
+            int batchBytes = 0;
+
+            TarArchiveEntry te;
+            while ((te = t.getNextTarEntry())!=null) {
+                w.checkFailure();
+                File f = resolve(dir, te.getName());
+                if (te.isDirectory()) {
+                    Files.createDirectories(f.toPath());
+                } else if (te.isSymbolicLink()) {
+                    createSymlink(f, te.getLinkName());
+                } else if (te.getSize()<=SMALL_FILE) {
+                    int size = (int)te.getSize();
+                    w.reserve(size);
+                    byte[] data = new byte[size];
+                    IOUtils.readFully(t, data);
+                    batch.add(new SmallFile(f, data, te.getMode(), te.getModTime().getTime()));
+                    batchBytes += size;
+                    if (batchBytes>=BATCH_BYTES || batch.size()>=BATCH_FILES) {
+                        submitTarBatch(batch, batchBytes, w);
+                        batch = new ArrayList<SmallFile>();
+                        batchBytes = 0;
+                    }
+                } else {
+                    writeLargeTarEntry(t, te, f, w);
+                }
+            }
+            if (!batch.isEmpty())
+                submitTarBatch(batch, batchBytes, w);
+        }
+    }
+
+    private static void submitTarBatch(final List<SmallFile> batch, int bytes, Writers w) {
+        w.submit(bytes, new Job() {
+            public void run() throws IOException {
+                for (SmallFile sf : batch)
+                    sf.write();
+            }
+        });
+    }
+
+    /**
+     * Decodes a large tgz entry chunk by chunk, and lets the pool write the chunks at their offsets.
+     */
+    private static void writeLargeTarEntry(InputStream t, final TarArchiveEntry te, final File f, Writers w) throws IOException, InterruptedException {
+        Files.createDirectories(f.toPath().getParent());
+        final FileChannel ch = FileChannel.open(f.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        long size = te.getSize();
+        final AtomicInteger remaining = new AtomicInteger((int)((size+CHUNK-1)/CHUNK));
+        // closed by the last chunk, or by Writers if the extraction fails
+        w.track(ch);
+        for (long pos=0; pos<size; pos+=CHUNK) {
+            final int len = (int)Math.min(CHUNK, size-pos);
+            w.reserve(len);
+            final byte[] data = new byte[len];
+            IOUtils.readFully(t, data);
+            final long offset = pos;
+            w.submit(len, new Job() {
+                public void run() throws IOException {
+                    ByteBuffer buf = ByteBuffer.wrap(data);
+                    long p = offset;
+                    while (buf.hasRemaining())
+                        p += ch.write(buf, p);
+                    if (remaining.decrementAndGet()==0) {
+                        ch.close();
+                        chmod(f, te.getMode());
+                        f.setLastModified(te.getModTime().getTime());
+                    }
+                }
+            });
+        }
+    }
+
+    private static File resolve(File dir, String name) throws IOException {
+        File f = new File(dir, name);
+        if (!f.toPath().normalize().startsWith(dir.toPath()))
+            throw new IOException("Bundle contains illegal file name that breaks out of the target directory: " + name);
+        return f;
+    }
+
+    private static void createSymlink(File f, String target) throws IOException, InterruptedException {
+        Files.createDirectories(f.toPath().getParent());
+        Util.createSymlink(f.getParentFile(), target, f.getName(), TaskListener.NULL);
+    }
+
+    private static void chmod(File f, int mode) throws IOException {
+        mode &= 0777;
+        if (mode==0 || Functions.isWindows())   return;
+        Files.setPosixFilePermissions(f.toPath(), Util.modeToPermissions(mode));
+    }
+
+    private static final class SmallFile {
+        final File file;
+        final byte[] data;
+        final int mode;
+        final long timestamp;
+
+        SmallFile(File file, byte[] data, int mode, long timestamp) {
+            this.file = file;
+            this.data = data;
+            this.mode = mode;
+            this.timestamp = timestamp;
+        }
+
+        void write() throws IOException {
+            Files.createDirectories(file.toPath().getParent());
+            Files.write(file.toPath(), data);
+            chmod(file, mode);
+            file.setLastModified(timestamp);
+        }
+    }
+
+    private interface Job {
+        void run() throws IOException;
+    }
+
+    /**
+     * Writer pool that bounds the pending bytes and remembers the first failure.
+     */
+    private static final class Writers {
+        private final ExecutorService pool;
+        private final Semaphore pending = new Semaphore(MAX_PENDING);
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        private final List<Closeable> open = Collections.synchronizedList(new ArrayList<Closeable>());
+
+        Writers(int threads) {
+            pool = Executors.newFixedThreadPool(threads,
+                    new NamingThreadFactory(new DaemonThreadFactory(), "distfork bundle extraction"));
+        }
+
+        /**
+         * Blocks until the given number of decoded bytes can be held in memory.
+         */
+        void reserve(int bytes) throws InterruptedException {
+            pending.acquire(bytes);
+        }
+
+        /**
+         * Runs the job on the pool, and gives back the bytes {@linkplain #reserve(int) reserved} for it when done.
+         */
+        void submit(final int bytes, final Job job) {
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (failure.get()==null)
+                            job.run();
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        pending.release(bytes);
+                    }
+                }
+            });
+        }
+
+        void checkFailure() throws IOException {
+            Throwable t = failure.get();
+            if (t!=null)
+                throw new IOException("Failed to extract the bundle", t);
+        }
+
+        /**
+         * Makes sure the given file gets closed even if the jobs writing to it never run.
+         */
+        void track(Closeable c) {
+            open.add(c);
+        }
+
+        /**
+         * Waits for all the submitted jobs to complete. Can be called more than once.
+         */
+        void finish() throws IOException, InterruptedException {
+            pool.shutdown();
+            try {
+                while (!pool.awaitTermination(1, TimeUnit.SECONDS))
+                    checkFailure();
+            } finally {
+                closeAll();
+            }
+            checkFailure();
+        }
+
+        /**
+         * Drops the pending jobs without waiting for them.
+         */
+        void abort() throws IOException {
+            failure.compareAndSet(null, new IOException("Extraction aborted"));
+            pool.shutdownNow();
+            closeAll();
+        }
+
+        private void closeAll() throws IOException {
+            synchronized (open) {
+                for (Closeable c : open)
+                    c.close();
+                open.clear();
+            }
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -1,5 +1,6 @@
 package hudson.plugins.distfork;
 
+import hudson.Util;
 import hudson.util.DirScanner;
 import hudson.util.FileVisitor;
 
@@ -11,27 +12,71 @@ import java.io.IOException;
  * Directory scanner that cuts off the head directory name.
  *
  * So where normally we'd see abc/def/ghi in the archive, this would put the same
- * file in def/ghi. 
+ * file in def/ghi.
+ *
+ * <p>
+ * If a {@link GlobFilter} is given, directories that it excludes are pruned
+ * during the walk instead of being filtered file by file.
  *
  * @author Kohsuke Kawaguchi
 */
-class RootCutOffFilter extends DirScanner.Filter {
+class RootCutOffFilter extends DirScanner {
+    private final FileFilter filter;
+    private final GlobFilter globs;
+
     public RootCutOffFilter(FileFilter filter) {
-        super(filter);
+        this(filter,null);
+    }
+
+    public RootCutOffFilter(FileFilter filter, GlobFilter globs) {
+        this.filter = filter;
+        this.globs = globs==null || globs.isEmpty() ? null : globs;
     }
 
     @Override
-    public void scan(File dir, final FileVisitor visitor) throws IOException {
-        super.scan(dir,new FileVisitor() {
-            @Override
-            public void visit(File f, String relativePath) throws IOException {
-                int idx = relativePath.indexOf('/');
-                if (idx<0)  return;
-
-                // ignore the first path component
-                visitor.visit(f,relativePath.substring(idx+1));
+    public void scan(File dir, FileVisitor visitor) throws IOException {
+        File[] children = dir.listFiles();
+        if (children==null)     return;
+        // the head directory itself is never visited, so paths start from its children
+        for (File child : children)
+            scan(child,child.getName(),visitor);
+    }
+
+    private void scan(File f, String relativePath, FileVisitor visitor) throws IOException {
+        if (!f.canRead())   return;
+
+        if (visitor.understandsSymlink()) {
+            String target;
+            try {
+                target = Util.resolveSymlink(f);
+            } catch (IOException e) {
+                // JENKINS-13202: like DirScanner.Full, an unreadable link is treated as a plain file
+                target = null;
             }
-        });
+            if (target!=null) {
+                if (accept(f,relativePath))
+                    visitor.visitSymlink(f,target,relativePath);
+                return;
+            }
+        }
+
+        boolean isDir = f.isDirectory();
+        if (isDir && globs!=null && globs.isPruned(relativePath))
+            return;
+
+        if (accept(f,relativePath))
+            visitor.visit(f,relativePath);
+
+        if (isDir) {
+            File[] children = f.listFiles();
+            if (children==null)     return;
+            for (File child : children)
+                scan(child,relativePath+'/'+child.getName(),visitor);
+        }
+    }
+
+    private boolean accept(File f, String relativePath) {
+        return filter.accept(f) && (globs==null || globs.accept(relativePath));
     }
 
     private static final long serialVersionUID = 1L;
@@ -0,0 +1,101 @@
+package hudson.plugins.distfork;
+
+import hudson.FilePath;
+import hudson.FilePath.TarCompression;
+import hudson.Util;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packing and extraction of the <tt>-z</tt>/<tt>-Z</tt> bundles, the way {@link DistForkCommand} does them.
+ * Extraction is measured both with the sequential {@link FilePath} methods and with {@link ParallelExtractor}.
+ * One operation handles the whole tree; {@link BenchmarkRunner} derives the figures per file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ArchiveBenchmark {
+    @Param({"TINY_FILES", "HUGE_FILES", "DEEP_NESTING"})
+    public SyntheticTree shape;
+
+    @Param({"zip", "tgz"})
+    public String format;
+
+    private File dir;
+    private FilePath source;
+    private FilePath target;
+    private byte[] bundle;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("distfork-bench").toFile();
+        File w = new File(dir, "w");
+        shape.create(w);
+        source = new FilePath(w);
+        target = new FilePath(new File(dir, "x"));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        packTo(baos);
+        bundle = baos.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Util.deleteRecursive(dir);
+    }
+
+    @Setup(Level.Invocation)
+    public void cleanTarget() throws Exception {
+        target.deleteRecursive();
+        target.mkdirs();
+    }
+
+    private long packTo(OutputStream out) throws Exception {
+        CountingOutputStream os = new CountingOutputStream(out);
+        RootCutOffFilter scanner = new RootCutOffFilter(new TimestampFilter(0));
+        if (format.equals("zip")) {
+            source.zip(os, scanner);
+        } else {
+            try (OutputStream gz = TarCompression.GZIP.compress(os)) {
+                source.tar(gz, scanner);
+            }
+        }
+        return os.getByteCount();
+    }
+
+    @Benchmark
+    public long pack() throws Exception {
+        return packTo(NullOutputStream.NULL_OUTPUT_STREAM);
+    }
+
+    @Benchmark
+    public void unpackSequential() throws Exception {
+        if (format.equals("zip"))
+            target.unzipFrom(new ByteArrayInputStream(bundle));
+        else
+            target.untarFrom(new ByteArrayInputStream(bundle), TarCompression.GZIP);
+    }
+
+    @Benchmark
+    public void unpackParallel() throws Exception {
+        target.act(new ParallelExtractor(new ByteArrayInputStream(bundle), format.equals("zip"), 4));
+    }
+}
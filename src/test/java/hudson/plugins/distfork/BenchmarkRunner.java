@@ -0,0 +1,62 @@
+package hudson.plugins.distfork;
+
+import org.junit.Test;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Runs the JMH benchmarks in this package. Invoke with <tt>mvn test -Dbenchmark</tt>;
+ * the raw results go to <tt>target/jmh-report.json</tt>.
+ *
+ * <p>
+ * Benchmarks over a {@link SyntheticTree} measure one whole tree per operation,
+ * so the per-file rate, the content throughput and the allocation per file are printed here as well.
+ * Scans never read the content, so they have no content throughput.
+ */
+public class BenchmarkRunner {
+    @Test
+    public void runJmhBenchmarks() throws Exception {
+        Options options = new OptionsBuilder()
+                .include(getClass().getPackage().getName()+"\\.\\w+Benchmark")
+                .warmupIterations(2)
+                .measurementIterations(5)
+                .forks(1)
+                .addProfiler(GCProfiler.class)
+                .shouldFailOnError(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-report.json")
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        System.out.println();
+        System.out.printf("%-50s %-14s %-8s %12s %10s %14s%n", "benchmark", "shape", "", "files/s", "MB/s", "B alloc/file");
+        for (RunResult r : results) {
+            BenchmarkParams p = r.getParams();
+            String shape = p.getParam("shape");
+            if (shape==null)
+                continue;
+            SyntheticTree tree = SyntheticTree.valueOf(shape);
+            int files = tree.files;
+            double secondsPerOp = r.getPrimaryResult().getScore() * p.getTimeUnit().toNanos(1) / 1e9;
+            double alloc = Double.NaN;
+            for (Map.Entry<String,Result> e : r.getSecondaryResults().entrySet()) {
+                if (e.getKey().endsWith("gc.alloc.rate.norm"))
+                    alloc = e.getValue().getScore();
+            }
+            String variant = p.getParam("format")!=null ? p.getParam("format") : p.getParam("globs");
+            String mbps = p.getBenchmark().contains(ScanBenchmark.class.getSimpleName()) ? "n/a"
+                    : String.format("%.1f", (double)files*tree.fileSize/secondsPerOp/(1024*1024));
+            System.out.printf("%-50s %-14s %-8s %12.0f %10s %14.1f%n", p.getBenchmark(), shape, variant,
+                    files/secondsPerOp, mbps, alloc/files);
+        }
+    }
+}
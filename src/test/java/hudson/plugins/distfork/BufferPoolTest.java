@@ -0,0 +1,62 @@
+package hudson.plugins.distfork;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void acquireBlocksAtTheLimit() throws Exception {
+        final BufferPool pool = new BufferPool(16, 2);
+        byte[] a = pool.acquire();
+        byte[] b = pool.acquire();
+        assertNotSame(a, b);
+
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> c = es.submit(pool::acquire);
+            try {
+                c.get(500, TimeUnit.MILLISECONDS);
+                fail("acquired a third buffer from a pool of two");
+            } catch (TimeoutException e) {
+                // blocked, as expected
+            }
+            pool.release(a);
+            // resumes with the returned buffer instead of allocating a new one
+            assertSame(a, c.get(5, TimeUnit.SECONDS));
+            assertEquals(32, pool.getPeakBytes());
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    @Test
+    public void acquireIsInterruptible() throws Exception {
+        final BufferPool pool = new BufferPool(16, 1);
+        pool.acquire();
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> f = es.submit(pool::acquire);
+            Thread.sleep(200);
+            es.shutdownNow();
+            assertTrue(es.awaitTermination(5, TimeUnit.SECONDS));
+            try {
+                f.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof InterruptedIOException);
+            }
+        } finally {
+            es.shutdownNow();
+        }
+    }
+}
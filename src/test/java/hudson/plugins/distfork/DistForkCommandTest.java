@@ -25,9 +25,15 @@ package hudson.plugins.distfork;
 
 import hudson.Functions;
 import hudson.Launcher;
+import hudson.Util;
 import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.commons.io.input.NullInputStream;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinci.plugins.mock_slave.MockCloud;
@@ -40,19 +46,25 @@ import hudson.cli.CLI;
 import hudson.cli.CLICommandInvoker;
 import hudson.model.Computer;
 import hudson.model.Item;
+import hudson.model.Label;
+import hudson.model.TaskListener;
 import hudson.model.Node.Mode;
 import hudson.model.Queue;
 import hudson.model.User;
+import hudson.model.queue.CauseOfBlockage;
 import hudson.plugins.sshslaves.SSHLauncher;
 import hudson.security.AccessDeniedException2;
 import hudson.security.GlobalMatrixAuthorizationStrategy;
 import hudson.security.HudsonPrivateSecurityRealm;
 import hudson.slaves.Cloud;
+import hudson.slaves.CloudProvisioningListener;
 import hudson.slaves.DumbSlave;
 import java.io.File;
+import java.io.FileOutputStream;
 import hudson.util.StreamTaskListener;
 import java.io.ByteArrayInputStream;
 import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -68,6 +80,7 @@ import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.rules.TemporaryFolder;
 import org.jvnet.hudson.test.LoggerRule;
+import org.jvnet.hudson.test.TestExtension;
 import com.cloudbees.plugins.credentials.CredentialsScope;
 import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
@@ -241,6 +254,57 @@ public class DistForkCommandTest {
         assertThat(result, allOf( containsString("Executing on mock-"), containsString(whoIAM)));
     }
 
+    @Test
+    public void warmPool() throws Exception {
+        MockCloud cloud = new MockCloud("");
+        cloud.setLabels("cloud");
+        jr.jenkins.clouds.add(cloud);
+        String old = DistForkProvisioningStrategy.WARM_POOL;
+        DistForkProvisioningStrategy.WARM_POOL = "cloud=2";
+        try {
+            String result = commandAndOutput(null, "-l", "cloud", "whoami");
+            assertThat(result, containsString("Executing on mock-"));
+            // idle capacity is provisioned for the next burst without any task waiting
+            Label l = jr.jenkins.getLabel("cloud");
+            for (int i = 0; i < 60 && l.getTotalExecutors() - l.getBusyExecutors() < 2; i++) {
+                Thread.sleep(1000);
+            }
+            assertThat(l.getTotalExecutors() - l.getBusyExecutors(), greaterThanOrEqualTo(2));
+        } finally {
+            DistForkProvisioningStrategy.WARM_POOL = old;
+        }
+    }
+
+    @Test
+    public void warmPoolRespectsListenerVeto() throws Exception {
+        MockCloud cloud = new MockCloud("");
+        cloud.setLabels("cloud");
+        jr.jenkins.clouds.add(cloud);
+        String old = DistForkProvisioningStrategy.WARM_POOL;
+        DistForkProvisioningStrategy.WARM_POOL = "cloud=2";
+        try {
+            DistForkProvisioningStrategy.scheduled(jr.jenkins.getLabel("cloud"));
+            Thread.sleep(5000);
+            // the quota listener vetoes it, so nothing is provisioned for the warm pool
+            assertEquals(0, jr.jenkins.getLabel("cloud").getTotalExecutors());
+        } finally {
+            DistForkProvisioningStrategy.WARM_POOL = old;
+        }
+    }
+
+    @TestExtension("warmPoolRespectsListenerVeto")
+    public static class Quota extends CloudProvisioningListener {
+        @Override
+        public CauseOfBlockage canProvision(Cloud cloud, Cloud.CloudState state, int numExecutors) {
+            return new CauseOfBlockage() {
+                @Override
+                public String getShortDescription() {
+                    return "over quota";
+                }
+            };
+        }
+    }
+
     @SuppressWarnings("deprecation")
     private String commandAndOutput(String user, String... args) throws Exception {
         CLICommandInvoker cliInvoker = new CLICommandInvoker(jr, "dist-fork");
@@ -289,6 +353,216 @@ public class DistForkCommandTest {
         }
     }
 
+    @Test
+    public void returnIncludesAndExcludes() throws Exception {
+        assumeFalse("TODO would need to write an equivalent batch script", Functions.isWindows());
+        CLICommandInvoker.Result r = new CLICommandInvoker(jr, new DistForkCommand()).
+            invokeWithArgs("-Z", "=zip", "--return-include", "out/,logs/", "--return-exclude", "logs/",
+                           "sh", "-c", "sleep 1; mkdir out logs; echo hello > out/c; echo noise > logs/x.log; echo other > d");
+        assertThat(r, CLICommandInvoker.Matcher.succeeded());
+        List<String> names = new ArrayList<>();
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(r.stdoutBinary()); ZipInputStream zis = new ZipInputStream(bais)) {
+            ZipEntry ze;
+            while ((ze = zis.getNextEntry()) != null) {
+                names.add(ze.getName());
+            }
+        }
+        assertThat(names, hasItem("out/c"));
+        assertThat(names, not(hasItem("d")));
+        assertThat(names, not(hasItem(startsWith("logs"))));
+    }
+
+    @Test
+    public void chunkedBundleTransfers() throws Exception {
+        assumeFalse("TODO would need to write an equivalent batch script", Functions.isWindows());
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(baos)) {
+            zos.putNextEntry(new ZipEntry("a"));
+            zos.write("hello ".getBytes());
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("b"));
+            zos.write("world".getBytes());
+            zos.closeEntry();
+        }
+        byte[] bundle = baos.toByteArray();
+        byte[][] chunks = {Arrays.copyOfRange(bundle, 0, 50), Arrays.copyOfRange(bundle, 50, bundle.length)};
+
+        // a corrupted chunk is rejected, and can be sent again
+        assertThat(bundleCommand(chunks[0], "put", "in.zip", "0", sha256(chunks[1])), not(CLICommandInvoker.Matcher.succeeded()));
+        for (int i = 0; i < chunks.length; i++) {
+            assertThat(bundleCommand(chunks[i], "put", "in.zip", String.valueOf(i), sha256(chunks[i])), CLICommandInvoker.Matcher.succeeded());
+        }
+        assertThat(bundleCommand(null, "seal", "in.zip", "2"), CLICommandInvoker.Matcher.succeeded());
+
+        CLICommandInvoker.Result r = new CLICommandInvoker(jr, new DistForkCommand()).
+            invokeWithArgs("-z", "@in.zip", "-Z", "@out.zip", "sh", "-c", "sleep 1; cat a b > c; rm a b");
+        assertThat(r, CLICommandInvoker.Matcher.succeeded());
+
+        r = bundleCommand(null, "status", "out.zip");
+        assertThat(r, CLICommandInvoker.Matcher.succeeded());
+        assertThat(r.stdout(), allOf(startsWith("0 "), containsString("sealed")));
+        r = bundleCommand(null, "get", "out.zip", "0");
+        assertThat(r, CLICommandInvoker.Matcher.succeeded());
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(r.stdoutBinary()); ZipInputStream zis = new ZipInputStream(bais)) {
+            ZipEntry ze = zis.getNextEntry();
+            assertNotNull(ze);
+            assertEquals("c", ze.getName());
+            assertEquals("hello world", IOUtils.toString(zis));
+            assertNull(zis.getNextEntry());
+        }
+    }
+
+    @Test
+    public void bundleLimits() throws Exception {
+        assumeFalse("TODO would need to write an equivalent batch script", Functions.isWindows());
+        // a -Z @ID that does not complete leaves no bundle behind
+        CLICommandInvoker.Result r = new CLICommandInvoker(jr, new DistForkCommand()).
+            invokeWithArgs("-t", "1", "-Z", "@timeout.zip", "sh", "-c", "sleep 10");
+        assertThat(r, not(CLICommandInvoker.Matcher.succeeded()));
+        assertThat(bundleCommand(null, "status", "timeout.zip").stderr(), containsString("No such bundle"));
+
+        byte[] chunk = new byte[1000];
+        assertThat(bundleCommand(chunk, "put", "old.zip", "0", sha256(chunk)), CLICommandInvoker.Matcher.succeeded());
+        // an unsealed bundle is rejected before the task is scheduled
+        r = new CLICommandInvoker(jr, new DistForkCommand()).invokeWithArgs("-z", "@old.zip", "true");
+        assertThat(r, not(CLICommandInvoker.Matcher.succeeded()));
+        assertThat(r.stderr(), containsString("not sealed"));
+        assertEquals(0, jr.jenkins.getQueue().getItems().length);
+
+        long oldMax = ChunkedBundle.MAX_BYTES;
+        ChunkedBundle.MAX_BYTES = 1500;
+        try {
+            r = bundleCommand(chunk, "put", "old.zip", "1", sha256(chunk));
+            assertThat(r, not(CLICommandInvoker.Matcher.succeeded()));
+            assertThat(r.stderr(), containsString("more than the limit"));
+            // the rejected upload left nothing on disk
+            assertThat(bundleCommand(null, "status", "old.zip").stdout(), not(containsString("1 ")));
+        } finally {
+            ChunkedBundle.MAX_BYTES = oldMax;
+        }
+
+        long oldAge = ChunkedBundle.MAX_AGE;
+        ChunkedBundle.MAX_AGE = -1000;
+        try {
+            new ChunkedBundle.Cleanup().execute(TaskListener.NULL);
+        } finally {
+            ChunkedBundle.MAX_AGE = oldAge;
+        }
+        assertThat(bundleCommand(null, "status", "old.zip").stderr(), containsString("No such bundle"));
+    }
+
+    @Test
+    public void datasets() throws Exception {
+        assumeFalse("TODO would need to write an equivalent batch script", Functions.isWindows());
+        File published = new File(jr.jenkins.getRootDir(), "distfork-datasets/ref/1.zip");
+        published.getParentFile().mkdirs();
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(published))) {
+            zos.putNextEntry(new ZipEntry("data/a"));
+            zos.write("reference".getBytes());
+            zos.closeEntry();
+        }
+        for (int i = 0; i < 2; i++) {
+            CLICommandInvoker.Result r = new CLICommandInvoker(jr, new DistForkCommand()).
+                invokeWithArgs("--dataset", "ref@1", "-Z", "=zip", "sh", "-c", "sleep 1; cat ref/data/a >&2; echo x > out");
+            assertThat(r, CLICommandInvoker.Matcher.succeeded());
+            assertThat(r.stderr(), containsString("reference"));
+            // staged only by the first task
+            assertThat(r.stderr(), i == 0 ? containsString("Staging dataset ref@1") : not(containsString("Staging dataset")));
+            try (ByteArrayInputStream bais = new ByteArrayInputStream(r.stdoutBinary()); ZipInputStream zis = new ZipInputStream(bais)) {
+                ZipEntry ze = zis.getNextEntry();
+                assertNotNull(ze);
+                assertEquals("out", ze.getName());
+                assertNull(zis.getNextEntry());
+            }
+        }
+        assertThat(new CLICommandInvoker(jr, new DistForkCommand()).invokeWithArgs("--dataset", "ref@2", "true"),
+                   not(CLICommandInvoker.Matcher.succeeded()));
+    }
+
+    @Test
+    public void concurrentDatasets() throws Exception {
+        assumeFalse("TODO would need to write an equivalent batch script", Functions.isWindows());
+        File published = new File(jr.jenkins.getRootDir(), "distfork-datasets/big/1.zip");
+        published.getParentFile().mkdirs();
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(published))) {
+            for (int i = 0; i < 50; i++) {
+                zos.putNextEntry(new ZipEntry("data/f" + i));
+                zos.write(new byte[1024 * 1024]);
+                zos.closeEntry();
+            }
+        }
+        DumbSlave s = jr.createSlave("datasets", "datasets", null);
+        s.setNumExecutors(4);
+        jr.jenkins.updateNode(s);
+        jr.waitOnline(s);
+
+        ExecutorService clients = Executors.newFixedThreadPool(4);
+        List<Future<CLICommandInvoker.Result>> calls = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            calls.add(clients.submit(() -> new CLICommandInvoker(jr, new DistForkCommand()).
+                invokeWithArgs("-l", "datasets", "--dataset", "big@1", "sh", "-c", "test -f big/data/f49")));
+        }
+        int staged = 0;
+        for (Future<CLICommandInvoker.Result> f : calls) {
+            CLICommandInvoker.Result r = f.get();
+            assertThat(r, CLICommandInvoker.Matcher.succeeded());
+            staged += StringUtils.countMatches(r.stderr(), "Staging dataset big@1");
+        }
+        clients.shutdown();
+        // the tasks that came while it was being staged waited for it, instead of fetching it again
+        assertEquals(1, staged);
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        assumeFalse("TODO would need to write an equivalent batch script", Functions.isWindows());
+        File pidFile = new File(jr.jenkins.getRootDir(), "child.pid");
+        long start = System.currentTimeMillis();
+        CLICommandInvoker.Result r = new CLICommandInvoker(jr, new DistForkCommand()).
+            invokeWithArgs("-t", "1", "-Z", "=zip", "sh", "-c", "sleep 60 & echo $! > " + pidFile.getAbsolutePath() + "; sleep 60");
+        assertThat(r, not(CLICommandInvoker.Matcher.succeeded()));
+        assertThat(r.stderr(), allOf(containsString("Timed out after 1 seconds"), not(containsString("Copying back files"))));
+        assertThat(System.currentTimeMillis() - start, lessThan(30000L));
+        assertThat(DistForkMetrics.ABORT_TO_RELEASE.getCount(), greaterThan(0L));
+
+        // the background child is killed along with the shell
+        String pid = FileUtils.readFileToString(pidFile, "UTF-8").trim();
+        boolean alive = true;
+        for (int i = 0; i < 100 && alive; i++) {
+            alive = new ProcessBuilder("kill", "-0", pid).start().waitFor() == 0;
+            if (alive) {
+                Thread.sleep(100);
+            }
+        }
+        assertFalse("process " + pid + " is still running", alive);
+    }
+
+    @Test
+    public void compressedOutput() throws Exception {
+        assumeFalse("TODO would need to write an equivalent batch script", Functions.isWindows());
+        CLICommandInvoker.Result r = new CLICommandInvoker(jr, new DistForkCommand()).
+            invokeWithArgs("--compress-output", "sh", "-c", "for i in $(seq 1 10000); do echo line $i; done");
+        assertThat(r, CLICommandInvoker.Matcher.succeeded());
+        String out;
+        try (GZIPInputStream gz = new GZIPInputStream(new ByteArrayInputStream(r.stdoutBinary()))) {
+            out = IOUtils.toString(gz);
+        }
+        assertThat(out, allOf(startsWith("line 1\n"), endsWith("line 10000\n")));
+        assertThat(r.stdoutBinary().length, lessThan(out.length()));
+    }
+
+    private CLICommandInvoker.Result bundleCommand(byte[] stdin, String... args) {
+        CLICommandInvoker invoker = new CLICommandInvoker(jr, new DistForkBundleCommand());
+        if (stdin != null) {
+            invoker.withStdin(new ByteArrayInputStream(stdin));
+        }
+        return invoker.invokeWithArgs(args);
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        return Util.toHexString(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
     @Issue("JENKINS-49205")
     @Test
     public void plainCLIStdinFileTransfersSlave() throws Exception {
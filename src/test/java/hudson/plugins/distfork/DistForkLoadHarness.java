@@ -0,0 +1,205 @@
+package hudson.plugins.distfork;
+
+import hudson.Functions;
+import hudson.cli.CLICommandInvoker;
+import hudson.slaves.DumbSlave;
+import org.jenkinci.plugins.mock_slave.MockSlaveLauncher;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+/**
+ * Fires many concurrent <tt>dist-fork</tt> calls over several labels and reports the throughput and latencies.
+ * Invoke with <tt>mvn test -Dload</tt>; the size of the run is controlled with the system properties
+ * <tt>load.agents</tt>, <tt>load.executors</tt>, <tt>load.calls</tt> and <tt>load.concurrency</tt>.
+ * {@link #dispatchLatency()} instead makes one call at a time, to measure the dispatch of short tasks.
+ *
+ * <p>
+ * End-to-end latencies are measured here; the split into queue wait and execution, and the usage of
+ * the {@link BufferPool}, come from {@link DistForkMetrics}. {@link #heapPerTask()} measures the controller
+ * heap that a running task costs.
+ */
+public class DistForkLoadHarness {
+
+    @Rule
+    public JenkinsRule jr = new JenkinsRule();
+
+    private static final int AGENTS = Integer.getInteger("load.agents", 4);
+    private static final int EXECUTORS = Integer.getInteger("load.executors", 4);
+    private static final int CALLS = Integer.getInteger("load.calls", 400);
+    private static final int CONCURRENCY = Integer.getInteger("load.concurrency", 200);
+
+    @BeforeClass
+    public static void runFaster() {
+        System.setProperty("hudson.model.LoadStatistics.clock", "1000");
+    }
+
+    @Test
+    public void plain() throws Exception {
+        run("plain", null, "true");
+    }
+
+    @Test
+    public void bundles() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(baos)) {
+            for (int i = 0; i < 100; i++) {
+                zos.putNextEntry(new ZipEntry("src/f" + i));
+                zos.write(new byte[4096]);
+                zos.closeEntry();
+            }
+        }
+        run("-z/-Z", baos.toByteArray(), "-z", "=zip", "-Z", "=zip", "sh", "-c", "cat src/* > out");
+    }
+
+    @Test
+    public void dispatchLatency() throws Exception {
+        createAgents();
+        dispatch("sequential", "true");
+    }
+
+    /**
+     * Controller heap used with every executor running a task, minus the heap used when idle.
+     * The CLI clients run in the same JVM, so this is an upper bound.
+     */
+    @Test
+    public void heapPerTask() throws Exception {
+        createAgents();
+        int tasks = AGENTS * EXECUTORS;
+        // warm up
+        for (int i = 0; i < AGENTS; i++) {
+            assertThat(invoke(null, "load" + i, "true"), CLICommandInvoker.Matcher.succeeded());
+        }
+        long idle = usedHeap();
+
+        ExecutorService clients = Executors.newFixedThreadPool(tasks);
+        List<Future<CLICommandInvoker.Result>> calls = new ArrayList<>();
+        for (int i = 0; i < tasks; i++) {
+            final String label = "load" + i % AGENTS;
+            calls.add(clients.submit(() -> invoke(null, label, "sleep", "20")));
+        }
+        // steady state: every task is running its process
+        while (DistForkMetrics.getRunning() < tasks) {
+            Thread.sleep(100);
+        }
+        Thread.sleep(2000);
+        long busy = usedHeap();
+        for (Future<CLICommandInvoker.Result> f : calls) {
+            assertThat(f.get(), CLICommandInvoker.Matcher.succeeded());
+        }
+        clients.shutdown();
+
+        System.out.printf("%nheap: %dKB idle, %dKB with %d running tasks, %dKB per task%n",
+                idle / 1024, busy / 1024, tasks, (busy - idle) / 1024 / tasks);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private void dispatch(String scenario, String... args) throws Exception {
+        // warm up
+        for (int i = 0; i < AGENTS; i++) {
+            assertThat(invoke(null, "load", args), CLICommandInvoker.Matcher.succeeded());
+        }
+        DistForkMetrics.reset();
+
+        long[] latencies = new long[CALLS];
+        for (int i = 0; i < CALLS; i++) {
+            long t = System.nanoTime();
+            assertThat(invoke(null, "load", args), CLICommandInvoker.Matcher.succeeded());
+            latencies[i] = (System.nanoTime() - t) / 1000;
+        }
+
+        Arrays.sort(latencies);
+        System.out.printf("%n%s: %d calls over %d agents x %d executors%n", scenario, CALLS, AGENTS, EXECUTORS);
+        System.out.printf("end-to-end: p50=%dus p99=%dus%n", latencies[CALLS / 2], latencies[Math.min(CALLS - 1, CALLS * 99 / 100)]);
+        System.out.printf("queue wait: p50=%dus p99=%dus%n", DistForkMetrics.QUEUE_WAIT.percentile(50), DistForkMetrics.QUEUE_WAIT.percentile(99));
+    }
+
+    private void run(String scenario, final byte[] stdin, String... args) throws Exception {
+        createAgents();
+
+        // warm up the agents and the class loading
+        for (int i = 0; i < AGENTS; i++) {
+            assertThat(invoke(stdin, "load" + i, args), CLICommandInvoker.Matcher.succeeded());
+        }
+        DistForkMetrics.reset();
+
+        ExecutorService clients = Executors.newFixedThreadPool(CONCURRENCY);
+        final String[] callArgs = args;
+        List<Future<Long>> calls = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < CALLS; i++) {
+            final String label = "load" + i % AGENTS;
+            calls.add(clients.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    long t = System.nanoTime();
+                    CLICommandInvoker.Result r = invoke(stdin, label, callArgs);
+                    assertThat(r, CLICommandInvoker.Matcher.succeeded());
+                    return (System.nanoTime() - t) / 1000000;
+                }
+            }));
+        }
+        long[] latencies = new long[CALLS];
+        for (int i = 0; i < CALLS; i++) {
+            latencies[i] = calls.get(i).get();
+        }
+        long wall = (System.nanoTime() - start) / 1000000;
+        clients.shutdown();
+
+        Arrays.sort(latencies);
+        System.out.printf("%n%s: %d calls, %d concurrent, %d agents x %d executors%n", scenario, CALLS, CONCURRENCY, AGENTS, EXECUTORS);
+        System.out.printf("throughput: %.1f tasks/s%n", CALLS * 1000.0 / wall);
+        System.out.printf("end-to-end: p50=%dms p99=%dms%n", latencies[CALLS / 2], latencies[Math.min(CALLS - 1, CALLS * 99 / 100)]);
+        System.out.print(DistForkMetrics.report());
+    }
+
+    private void createAgents() throws Exception {
+        assumeFalse("TODO would need to write an equivalent batch script", Functions.isWindows());
+        for (int i = 0; i < AGENTS; i++) {
+            DumbSlave s = new DumbSlave("load" + i, agentDir("load" + i), new MockSlaveLauncher(0, 0));
+            s.setNumExecutors(EXECUTORS);
+            s.setLabelString("load load" + i);
+            jr.jenkins.addNode(s);
+            jr.waitOnline(s);
+        }
+    }
+
+    private CLICommandInvoker.Result invoke(byte[] stdin, String label, String... args) {
+        CLICommandInvoker invoker = new CLICommandInvoker(jr, new DistForkCommand());
+        if (stdin != null) {
+            invoker.withStdin(new ByteArrayInputStream(stdin));
+        }
+        List<String> all = new ArrayList<>(Arrays.asList("-l", label));
+        all.addAll(Arrays.asList(args));
+        return invoker.invokeWithArgs(all.toArray(new String[0]));
+    }
+
+    private String agentDir(String name) {
+        return new File(jr.jenkins.getRootDir(), "agents/" + name).getAbsolutePath();
+    }
+}
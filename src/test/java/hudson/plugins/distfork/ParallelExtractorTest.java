@@ -0,0 +1,200 @@
+package hudson.plugins.distfork;
+
+import hudson.FilePath;
+import hudson.FilePath.TarCompression;
+import hudson.Functions;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+/**
+ * Compares the trees extracted by {@link ParallelExtractor} with those of the sequential {@link FilePath} methods,
+ * which are used when {@link ParallelExtractor#THREADS} is 1.
+ */
+public class ParallelExtractorTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final long MTIME = 1500000000000L;
+
+    /**
+     * Path to content, covering the batches of small files, a file over {@link ParallelExtractor#SMALL_FILE}
+     * and one over several {@link ParallelExtractor#CHUNK}s that does not end on a chunk boundary.
+     */
+    private final Map<String,byte[]> files = new LinkedHashMap<>();
+
+    @Before
+    public void setUp() {
+        assumeFalse("file modes are not supported", Functions.isWindows());
+        Random r = new Random(0);
+        for (int i = 0; i < ParallelExtractor.BATCH_FILES + 44; i++) {
+            files.put("small/d" + i % 7 + "/f" + i, random(r, i * 37));
+        }
+        files.put("medium/file", random(r, ParallelExtractor.SMALL_FILE * 3 + 1));
+        files.put("large/file", random(r, ParallelExtractor.CHUNK * 3 + 12345));
+        files.put("bin/run", random(r, 100));
+    }
+
+    @Test
+    public void tgz() throws Exception {
+        byte[] tgz = tgz();
+        File expected = tmp.newFolder("expected");
+        new FilePath(expected).untarFrom(new ByteArrayInputStream(tgz), TarCompression.GZIP);
+        File actual = tmp.newFolder("actual");
+        new ParallelExtractor(new ByteArrayInputStream(tgz), false, 4).invoke(actual, null);
+
+        assertSameTree(expected, actual);
+        assertModeAndTimestamp(actual);
+    }
+
+    @Test
+    public void zip() throws Exception {
+        byte[] zip = zip(true);
+        File expected = tmp.newFolder("expected");
+        new FilePath(expected).unzipFrom(new ByteArrayInputStream(zip));
+        File actual = tmp.newFolder("actual");
+        new ParallelExtractor(new ByteArrayInputStream(zip), true, 4).invoke(actual, null);
+
+        assertSameTree(expected, actual);
+        assertModeAndTimestamp(actual);
+        // like FilePath.unzipFrom, symlink entries do not become symlinks
+        assertFalse(Files.isSymbolicLink(new File(actual, "link").toPath()));
+    }
+
+    @Test
+    public void truncatedTgz() throws Exception {
+        byte[] tgz = tgz();
+        // cut in the middle of the large file, while its chunks are being written
+        byte[] truncated = Arrays.copyOf(tgz, tgz.length - ParallelExtractor.CHUNK);
+        File dir = tmp.newFolder();
+        assertThrows(IOException.class, () -> new ParallelExtractor(new ByteArrayInputStream(truncated), false, 4).invoke(dir, null));
+    }
+
+    @Test
+    public void failingWrite() throws Exception {
+        byte[] zip = zip(false);
+        File dir = tmp.newFolder();
+        // a directory where the writers need to put a file
+        assertTrue(new File(dir, "small/d3/f10").mkdirs());
+        IOException e = assertThrows(IOException.class, () -> new ParallelExtractor(new ByteArrayInputStream(zip), true, 4).invoke(dir, null));
+        assertEquals("Failed to extract the bundle", e.getMessage());
+    }
+
+    private void assertModeAndTimestamp(File dir) throws IOException {
+        for (String name : files.keySet()) {
+            File f = new File(dir, name);
+            // zip only records even seconds
+            assertEquals(name, MTIME, f.lastModified());
+            assertEquals(name, name.startsWith("bin/") ? 0755 : 0640, mode(f));
+        }
+    }
+
+    private static int mode(File f) throws IOException {
+        int mode = 0;
+        for (PosixFilePermission p : Files.getPosixFilePermissions(f.toPath())) {
+            mode |= 0400 >> p.ordinal();
+        }
+        return mode;
+    }
+
+    private static void assertSameTree(File expected, File actual) throws IOException {
+        List<String> paths = list(expected);
+        assertEquals(paths, list(actual));
+        for (String p : paths) {
+            File e = new File(expected, p);
+            File a = new File(actual, p);
+            if (e.isDirectory()) {
+                continue;
+            }
+            assertArrayEquals(p, Files.readAllBytes(e.toPath()), Files.readAllBytes(a.toPath()));
+            assertEquals(p, mode(e), mode(a));
+            assertEquals(p, e.lastModified(), a.lastModified());
+        }
+    }
+
+    private static List<String> list(File dir) throws IOException {
+        Path root = dir.toPath();
+        try (Stream<Path> s = Files.walk(root)) {
+            return s.map(p -> root.relativize(p).toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private byte[] tgz() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tos = new TarArchiveOutputStream(new GZIPOutputStream(baos))) {
+            tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            for (Map.Entry<String,byte[]> e : files.entrySet()) {
+                TarArchiveEntry te = new TarArchiveEntry(e.getKey());
+                te.setSize(e.getValue().length);
+                te.setMode(TarArchiveEntry.DEFAULT_FILE_MODE & ~0777 | modeOf(e.getKey()));
+                te.setModTime(MTIME);
+                tos.putArchiveEntry(te);
+                tos.write(e.getValue());
+                tos.closeArchiveEntry();
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    private byte[] zip(boolean withSymlink) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ZipArchiveOutputStream zos = new ZipArchiveOutputStream(baos)) {
+            List<String> names = new ArrayList<>(files.keySet());
+            for (String name : names) {
+                ZipArchiveEntry ze = new ZipArchiveEntry(name);
+                ze.setUnixMode(UnixStat.FILE_FLAG | modeOf(name));
+                ze.setTime(MTIME);
+                zos.putArchiveEntry(ze);
+                zos.write(files.get(name));
+                zos.closeArchiveEntry();
+            }
+            if (withSymlink) {
+                ZipArchiveEntry ze = new ZipArchiveEntry("link");
+                ze.setUnixMode(UnixStat.LINK_FLAG | 0777);
+                ze.setTime(MTIME);
+                zos.putArchiveEntry(ze);
+                zos.write("/etc".getBytes("UTF-8"));
+                zos.closeArchiveEntry();
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    private static int modeOf(String name) {
+        return name.startsWith("bin/") ? 0755 : 0640;
+    }
+
+    private static byte[] random(Random r, int size) {
+        byte[] b = new byte[size];
+        r.nextBytes(b);
+        return b;
+    }
+}
@@ -0,0 +1,67 @@
+package hudson.plugins.distfork;
+
+import hudson.Util;
+import hudson.util.FileVisitor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scan rate of the <tt>-Z</tt> scanner, {@link RootCutOffFilter} with {@link TimestampFilter} and {@link GlobFilter}.
+ * One operation scans the whole tree; {@link BenchmarkRunner} derives the figures per file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScanBenchmark {
+    @Param({"TINY_FILES", "HUGE_FILES", "DEEP_NESTING"})
+    public SyntheticTree shape;
+
+    /**
+     * "none", or an exclude pattern that prunes half of the tree.
+     * {@link SyntheticTree} spreads the files evenly over the 8 top level directories, whatever the shape.
+     */
+    @Param({"none", "exclude"})
+    public String globs;
+
+    private File dir;
+    private RootCutOffFilter scanner;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("distfork-bench").toFile();
+        shape.create(new File(dir, "w"));
+        GlobFilter g = globs.equals("none") ? null
+                : new GlobFilter(Collections.<String>emptyList(), Collections.singletonList("d0/,d2/,d4/,d6/"));
+        scanner = new RootCutOffFilter(new TimestampFilter(0), g);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Util.deleteRecursive(dir);
+    }
+
+    @Benchmark
+    public void scan(final Blackhole bh) throws IOException {
+        scanner.scan(new File(dir, "w"), new FileVisitor() {
+            @Override
+            public void visit(File f, String relativePath) {
+                bh.consume(relativePath);
+            }
+        });
+    }
+}
@@ -0,0 +1,48 @@
+package hudson.plugins.distfork;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Directory trees of typical shapes for the benchmarks.
+ */
+public enum SyntheticTree {
+    /** Lots of tiny files spread over a few directories, like a dependency cache. */
+    TINY_FILES(20000, 512, 1),
+    /** A few large files, like build outputs or datasets. */
+    HUGE_FILES(4, 32*1024*1024, 1),
+    /** Moderately many small files in a deeply nested hierarchy, like a source tree. */
+    DEEP_NESTING(4000, 4*1024, 32);
+
+    final int files;
+    final int fileSize;
+    final int depth;
+
+    SyntheticTree(int files, int fileSize, int depth) {
+        this.files = files;
+        this.fileSize = fileSize;
+        this.depth = depth;
+    }
+
+    /**
+     * Populates the given directory. The content is half random, half repetitive, so it compresses somewhat.
+     */
+    void create(File dir) throws IOException {
+        Random r = new Random(files);
+        byte[] data = new byte[fileSize];
+        for (int i=0; i<files; i++) {
+            File d = dir;
+            for (int j=0; j<depth; j++)
+                d = new File(d, "d"+(i+j)%8);
+            d = new File(d, "g"+i%100);
+            Files.createDirectories(d.toPath());
+
+            r.nextBytes(data);
+            for (int k=data.length/2; k<data.length; k++)
+                data[k] = (byte)('a'+k%26);
+            Files.write(new File(d, "f"+i).toPath(), data);
+        }
+    }
+}